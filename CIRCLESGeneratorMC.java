@@ -198,11 +198,11 @@ public class CIRCLESGeneratorMC extends AbstractOptionHandler implements Instanc
 		
 		
 		// generate header
-		FastVector attributes = new FastVector();
+		FastVector<Attribute> attributes = new FastVector<Attribute>();
         attributes.addElement(new Attribute("x"));
         attributes.addElement(new Attribute("y"));
 
-        FastVector classLabels = new FastVector();
+        FastVector<String> classLabels = new FastVector<String>();
         for (int i = 0; i < numClasses; i++) {
             classLabels.addElement("class" + (i + 1));
         }
@@ -1,34 +1,46 @@
 package moa.classifiers.meta;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.math3.distribution.ChiSquaredDistribution;
 import org.apache.commons.math3.exception.DimensionMismatchException;
 import org.apache.commons.math3.exception.MaxCountExceededException;
 import org.apache.commons.math3.exception.NotPositiveException;
 import org.apache.commons.math3.exception.ZeroException;
-import org.apache.commons.math3.stat.inference.ChiSquareTest;
 import org.apache.commons.math3.stat.inference.KolmogorovSmirnovTest;
 
+import com.github.javacliparser.FlagOption;
+import com.github.javacliparser.FloatOption;
 import com.github.javacliparser.IntOption;
+import com.github.javacliparser.MultiChoiceOption;
+import com.yahoo.labs.samoa.instances.DenseInstance;
 import com.yahoo.labs.samoa.instances.Instance;
 import com.yahoo.labs.samoa.instances.InstancesHeader;
+import com.yahoo.memory.Memory;
+import com.yahoo.sketches.quantiles.CompactDoublesSketch;
 import com.yahoo.sketches.quantiles.DoublesSketch;
-import com.yahoo.sketches.quantiles.QuantileKSTest;
 import com.yahoo.sketches.quantiles.UpdateDoublesSketch;
 
 import moa.classifiers.AbstractClassifier;
 import moa.classifiers.Classifier;
 import moa.classifiers.MultiClassClassifier;
+import moa.classifiers.bayes.NaiveBayes;
 import moa.core.Measurement;
 import moa.options.ClassOption;
-import moa.options.FlagOption;
-import moa.options.FloatOption;
 import moa.streams.InstanceStream;
 
 // Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams 
@@ -36,6 +48,8 @@ import moa.streams.InstanceStream;
 
 public class CSE extends AbstractClassifier implements MultiClassClassifier {
 
+    private static final long serialVersionUID = 1L;
+
     public ClassOption baseLearnerOption = new ClassOption("baseLearner", 'l',
             "Base classifiers to train.", Classifier.class, "moa.classifiers.trees.HoeffdingTree");//"bayes.NaiveBayes");
     
@@ -53,24 +67,166 @@ public class CSE extends AbstractClassifier implements MultiClassClassifier {
 	
 	public static FlagOption balanceClassifierExamplesOption = new FlagOption("balanceClassifierExamples", 't', "Never train on more neg than positive examples");
 	
+	public IntOption testIntervalOption = new IntOption("testInterval", 'v', "Positive examples of a class between drift tests (0 tests every windowSize)",
+			0, 0, Integer.MAX_VALUE);
+	
+	public FloatOption referenceCacheToleranceOption = new FloatOption("referenceCacheTolerance", 'c',
+			"Largest change in reference CDF tolerated before its cached sorted view is rebuilt (0 rebuilds after any eviction)",
+			0.0, 0.0, 1.0);
+	
+	public FlagOption parallelTrainingOption = new FlagOption("parallelTraining", 'r', "Train class classifiers in parallel on a fork-join pool");
+	
+	public IntOption numThreadsOption = new IntOption("numThreads", 'j', "Threads used for parallel training (0 uses all available processors)",
+			0, 0, Integer.MAX_VALUE);
+	
+	public FlagOption asyncDriftTestingOption = new FlagOption("asyncDriftTesting", 'a',
+			"Run drift tests on a background thread against snapshots of the window and reference");
+	
+	public IntOption asyncQueueSizeOption = new IntOption("asyncQueueSize", 'q',
+			"Drift tests that may wait for the background thread before tests run inline again", 16, 1, Integer.MAX_VALUE);
+	
+	public MultiChoiceOption staleResultPolicyOption = new MultiChoiceOption("staleResultPolicy", 's',
+			"What to do with a background drift result that arrives after the next test point of its class",
+			new String[]{"Apply", "Discard", "Retest"},
+			new String[]{"Apply the result as if it had arrived on time", "Ignore the result", "Repeat the same attribute tests inline on the current window"},
+			0);
+	
+	public FlagOption backgroundRetrainingOption = new FlagOption("backgroundRetraining", 'b',
+			"Build replacement classifiers after drift on a background thread and swap them in when ready");
+	
+	public IntOption prototypePoolSizeOption = new IntOption("prototypePoolSize", 'o',
+			"Untrained base learners kept ready for replacing classifiers after drift", 0, 0, Integer.MAX_VALUE);
+	
+	public FlagOption reuseTrainingInstancesOption = new FlagOption("reuseTrainingInstances", 'u',
+			"Train base learners on a reused per-thread instance instead of copies (base learners must not keep training instances)");
+	
+	public IntOption negativeCandidatesOption = new IntOption("negativeCandidates", 'g',
+			"Train each instance as a negative only for the classes closest to it among a random sample, plus a few weighted random other classes (0 trains all)",
+			0, 0, Integer.MAX_VALUE);
+	
+	public FlagOption collectTimingsOption = new FlagOption("collectTimings", 'm',
+			"Time drift tests, retraining, training and prediction for the model measurements");
+	
+	public IntOption driftEventBufferSizeOption = new IntOption("driftEventBufferSize", 'e',
+			"Drift events held for listeners before further events are dropped (0 publishes no events)",
+			0, 0, Integer.MAX_VALUE);
+	
+	public IntOption referenceEpochsOption = new IntOption("referenceEpochs", 'h',
+			"Bound each class reference to its most recent epochs of instances (0 keeps every instance until a drift)",
+			0, 0, Integer.MAX_VALUE);
+	
+	public IntOption referenceEpochSizeOption = new IntOption("referenceEpochSize", 'z',
+			"Instances per reference epoch, raised if needed so the epochs together hold at least windowSize",
+			1024, 1, Integer.MAX_VALUE);
+	
+	//Checkpoints carry the sketches across restarts; see CSESketchStore
+	public MultiChoiceOption sketchStorageOption = new MultiChoiceOption("sketchStorage", 'x', "Where quantile sketches are kept",
+			new String[]{"Heap", "Direct"},
+			new String[]{"On the JVM heap", "In direct memory outside the heap (JDK 9+ needs --add-exports java.base/sun.nio.ch=ALL-UNNAMED)"},
+			0);
+	
+	public FlagOption sparseInstancesOption = new FlagOption("sparseInstances", 'y',
+			"Keep windows sparse and update references only for non-zero values, for high-dimensional sparse streams");
+	
+	//With M tests and S run per test point every attribute is tested at least once every ceil(M / S) test points, so
+	//detection waits at most (ceil(M / S) - 1) * testInterval more positives than testing everything. A change is
+	//seen while it still fills the window when S >= M * testInterval / windowSize
+	public IntOption testsPerCycleOption = new IntOption("testsPerCycle", 'd',
+			"Attribute tests run at each test point, rotating through the attributes (0 tests every attribute)",
+			0, 0, Integer.MAX_VALUE);
+	
+	public FlagOption sharedNaiveBayesOption = new FlagOption("sharedNaiveBayes", 'w',
+			"With a NaiveBayes base learner, derive every class model from one shared table of statistics");
+	
+	//The screen only skips KS distances that could not reach any Benjamini-Yekutieli rank, so decisions are unchanged
+	public IntOption preScreenPointsOption = new IntOption("preScreenPoints", 'f',
+			"Reference CDF points an upper bound on each KS distance is read at before computing it (0 always computes it)",
+			16, 0, Integer.MAX_VALUE);
+	
+	protected static final int STALE_APPLY = 0;
+	protected static final int STALE_DISCARD = 1;
+	protected static final int STALE_RETEST = 2;
+	
+	//Classes scored per negative candidate when routing negatives
+	protected static final int ROUTING_SAMPLE_FACTOR = 4;
+	
 	protected InstancesHeader ih;
     protected int numClasses = -1;
+    protected int shardFrom = 0;
+    protected int shardTo = -1;
+    protected int ownedFrom;
+    protected int ownedTo;
     protected int windowSize;
+    protected int testInterval;
     protected ArrayList<Classifier> classClassifiers;
-    protected ArrayList<LinkedList<Instance>> classWindows;
+    protected ArrayList<CSEClassWindow> classWindows;
     protected ArrayList<ArrayList<UpdateDoublesSketch>> classQuantileSketches;
-    protected ArrayList<ArrayList<ArrayList<Integer>>> classNominalCounts;
-    protected ArrayList<Integer> numericAtts;
-    protected ArrayList<Integer> nominalAtts;
+    protected ArrayList<ArrayList<CSEReferenceCDF>> classReferenceCDFs;
+    protected ArrayList<CSEReferenceEpochs> classReferenceEpochs;
+    protected transient CSESketchStore sketchStore;
+    protected CSESharedNaiveBayes sharedBayes;
+    protected double referenceCacheTolerance;
+    protected long[][] classNominalCounts;
+    protected long[] referenceSizes;
+    protected int[] numericAtts;
+    protected int[] nominalAtts;
+    protected int[] nominalOffsets;
+    protected boolean sparseInstances;
+    protected int[] numericIndexOf;
+    protected int[] nominalIndexOf;
     protected int instSeen;
     protected int numClassDrifts;
     protected boolean balanceClassifierExamples;
-    protected ArrayList<Integer> nominalVarsNumValues;
     protected Random rng;
+    protected Random[] classRngs;
+    protected boolean parallelTraining;
+    protected transient ForkJoinPool trainingPool;
+    protected boolean asyncDriftTesting;
+    protected int staleResultPolicy;
+    protected boolean[] testInFlight;
+    //Classes that reached a test point while their previous test was in flight
+    protected boolean[] testPending;
+    protected int[] classGenerations;
+    protected transient ThreadPoolExecutor driftTestExecutor;
+    protected transient ConcurrentLinkedQueue<DriftTestResult> completedDriftTests;
+    protected boolean backgroundRetraining;
+    protected ClassRebuild[] pendingRebuilds;
+    protected ArrayList<ClassRebuild> activeRebuilds;
+    protected ConcurrentLinkedQueue<Classifier> classifierPrototypes;
+    protected transient ThreadPoolExecutor retrainExecutor;
+    protected boolean reuseTrainingInstances;
+    protected transient ThreadLocal<Instance> scratchInstances;
+    //Instance inline retraining loads window slots into, kept apart from the training scratch instances so sparse
+    //windows can load and unload only their non-zeros
+    protected transient Instance retrainScratch;
+    protected transient ThreadLocal<Instance[]> runCopies;
+    protected int[] runPositives;
+    protected int[] negativeSources;
+    protected int negativeCandidates;
+    protected double[] routingWeights;
+    protected double[] candidateScores;
+    protected int[] candidateClasses;
+    protected int[] sampledClasses;
+    protected Random routingRng;
+    protected boolean[] classDirty;
+    //Directory and generation of the checkpoint this ensemble last wrote or restored, which classDirty is relative to
+    protected transient File checkpointDirectory;
+    protected transient int checkpointGeneration;
+    protected boolean collectTimings;
+    protected CSEStatistics statistics;
+    protected double[] testPValues;
+    protected int[] testRanks;
+    protected int[] testLevels;
+    protected int testsPerCycle;
+    protected int[] firstTests;
+    protected int preScreenPoints;
+    protected CSEDecisionEngine decisionEngine;
+    protected transient CSEDriftEvents driftEvents;
+    protected transient CopyOnWriteArrayList<CSEDriftListener> driftListeners;
     protected static double pValueAlpha;
     
-    Integer[] positiveExamplesSeen;
-    Integer[] negativeExamplesSeen;
+    int[] positiveExamplesSeen;
+    int[] negativeExamplesSeen;
     
 	@Override
 	public boolean isRandomizable() {
@@ -83,76 +239,355 @@ public class CSE extends AbstractClassifier implements MultiClassClassifier {
 		instSeen = 0;
 		numClassDrifts = 0;
 		this.rng = new Random(instanceRandomSeedOption.getValue());
-		this.pValueAlpha = pValueOption.getValue();
+		retrainScratch = null;
+		pValueAlpha = pValueOption.getValue();
 
 		balanceClassifierExamples = balanceClassifierExamplesOption.isSet();
+		parallelTraining = parallelTrainingOption.isSet();
+		windowSize = windowSizeOption.getValue();
+		referenceCacheTolerance = referenceCacheToleranceOption.getValue();
+		testInterval = testIntervalOption.getValue() > 0 ? testIntervalOption.getValue() : windowSize;
+		asyncDriftTesting = asyncDriftTestingOption.isSet();
+		staleResultPolicy = staleResultPolicyOption.getChosenIndex();
+		backgroundRetraining = backgroundRetrainingOption.isSet();
+		reuseTrainingInstances = reuseTrainingInstancesOption.isSet();
+		collectTimings = collectTimingsOption.isSet();
+		negativeCandidates = Math.min(negativeCandidatesOption.getValue(), Math.max(numClasses - 2, 0));
 		classClassifiers = new ArrayList<Classifier>();
-		classWindows = new ArrayList<LinkedList<Instance>>();
+		classWindows = new ArrayList<CSEClassWindow>();
 		classQuantileSketches = new ArrayList<ArrayList<UpdateDoublesSketch>>();
-		classNominalCounts = new ArrayList<ArrayList<ArrayList<Integer>>>();
-		numericAtts = new ArrayList<Integer>();
-		nominalAtts = new ArrayList<Integer>();
+		classReferenceCDFs = new ArrayList<ArrayList<CSEReferenceCDF>>();
+		classReferenceEpochs = new ArrayList<CSEReferenceEpochs>();
 		
-		this.positiveExamplesSeen = new Integer[numClasses];
-		this.negativeExamplesSeen = new Integer[numClasses];
-		Arrays.fill(positiveExamplesSeen, 0);
-		Arrays.fill(negativeExamplesSeen, 0);
+		this.positiveExamplesSeen = new int[numClasses];
+		this.negativeExamplesSeen = new int[numClasses];
+		this.referenceSizes = new long[numClasses];
+		this.testInFlight = new boolean[numClasses];
+		this.testPending = new boolean[numClasses];
+		this.classGenerations = new int[numClasses];
+		this.classDirty = new boolean[numClasses];
+		this.checkpointDirectory = null;
+		this.statistics = new CSEStatistics(numClasses);
+		this.completedDriftTests = new ConcurrentLinkedQueue<DriftTestResult>();
+		this.pendingRebuilds = new ClassRebuild[numClasses];
+		this.activeRebuilds = new ArrayList<ClassRebuild>();
+		this.classifierPrototypes = new ConcurrentLinkedQueue<Classifier>();
+		for(int i = 0; i < prototypePoolSizeOption.getValue(); i++){
+			classifierPrototypes.add(((Classifier) getPreparedClassOption(this.baseLearnerOption)).copy());
+		}
 		
-		//Get num of values for nominal attributes
-		nominalVarsNumValues = new ArrayList<Integer>();
+		//Each class gets its own random stream so parallel and serial training make identical choices
+		this.classRngs = new Random[numClasses];
+		for(int i = 0; i < numClasses; i++){
+			classRngs[i] = new Random(rng.nextLong());
+		}
+		this.routingRng = new Random(rng.nextLong());
+		this.routingWeights = new double[numClasses];
+		this.candidateScores = new double[negativeCandidates];
+		this.candidateClasses = new int[negativeCandidates];
+		this.sampledClasses = new int[Math.min(ROUTING_SAMPLE_FACTOR * negativeCandidates, Math.max(numClasses - 1, 0))];
+		this.negativeSources = new int[numClasses];
+		
+		//Split attributes into numeric and nominal, and lay out nominal levels end to end in one count table
+		int numNumeric = 0;
+		int numNominal = 0;
 		for(int a = 0; a < ih.numAttributes(); a++){
-			if(ih.attribute(a).isNominal() && a != ih.classIndex()) {
-				nominalVarsNumValues.add(ih.attribute(a).getAttributeValues().size());
-				nominalAtts.add(a);
-			} else if (a != ih.classIndex()){
-				nominalVarsNumValues.add(0);
-				numericAtts.add(a);
+			if(a == ih.classIndex()) continue;
+			if(ih.attribute(a).isNominal()) numNominal++; else numNumeric++;
+		}
+		numericAtts = new int[numNumeric];
+		nominalAtts = new int[numNominal];
+		nominalOffsets = new int[numNominal + 1];
+		numNumeric = 0;
+		numNominal = 0;
+		for(int a = 0; a < ih.numAttributes(); a++){
+			if(a == ih.classIndex()) continue;
+			if(ih.attribute(a).isNominal()) {
+				nominalAtts[numNominal] = a;
+				nominalOffsets[numNominal + 1] = nominalOffsets[numNominal] + ih.attribute(a).getAttributeValues().size();
+				numNominal++;
+			} else {
+				numericAtts[numNumeric++] = a;
 			}
 		}
 		
+		sparseInstances = sparseInstancesOption.isSet();
+		numericIndexOf = CSESparseClassWindow.indexOf(numericAtts, ih.numAttributes());
+		nominalIndexOf = CSESparseClassWindow.indexOf(nominalAtts, ih.numAttributes());
+		testPValues = new double[numericAtts.length + nominalAtts.length];
+		testRanks = new int[testPValues.length];
+		testLevels = new int[nominalAtts.length];
+		testsPerCycle = testsPerCycleOption.getValue() == 0 ? testPValues.length
+				: Math.min(testsPerCycleOption.getValue(), testPValues.length);
+		firstTests = new int[numClasses];
+		preScreenPoints = preScreenPointsOption.getValue();
+		runPositives = new int[numClasses];
+		int maxDf = 1;
+		for(int j = 0; j < nominalAtts.length; j++){
+			maxDf = Math.max(maxDf, nominalOffsets[j + 1] - nominalOffsets[j] - 1);
+		}
+		decisionEngine = new CSEDecisionEngine(pValueAlpha, testPValues.length, maxDf);
+		if(driftEvents != null){
+			driftEvents.stopDispatcher();
+			driftEvents = null;
+		}
+		//The ring is allocated here rather than on the first drift, so publishing never allocates
+		getDriftEvents();
+		
+		int numEpochs = referenceEpochsOption.getValue();
+		int epochSize = numEpochs == 0 ? 0 : Math.max(referenceEpochSizeOption.getValue(), (windowSize + numEpochs - 1) / numEpochs);
+		closeSketchStore();
+		if(sketchStorageOption.getChosenIndex() > 0){
+			sketchStore = new CSESketchStore(numClasses, numericAtts.length, qsKOption.getValue(), numEpochs, epochSize);
+		}
+		
+		//A shard keeps windows for every class, for routing and negative examples, but classifiers and references
+		//only for its own. Windows of other classes are drained when their owner reports a drift; see ShardedCSE
+		ownedFrom = Math.min(shardFrom, numClasses);
+		ownedTo = shardTo < 0 ? numClasses : Math.min(shardTo, numClasses);
+		sharedBayes = null;
+		if(sharedNaiveBayesOption.isSet()){
+			//Models can only be derived from shared counts when every one of them trains on every instance
+			if(!(getPreparedClassOption(this.baseLearnerOption) instanceof NaiveBayes) || balanceClassifierExamples
+					|| negativeCandidates > 0){
+				throw new IllegalArgumentException("sharedNaiveBayes needs a NaiveBayes base learner and neither "
+						+ "balanceClassifierExamples nor negativeCandidates");
+			}
+			sharedBayes = new CSESharedNaiveBayes(numClasses, ownedFrom, ownedTo, numericAtts, nominalAtts, nominalOffsets);
+		}
+		classNominalCounts = new long[numClasses][];
 		for(int i = 0; i < numClasses; i++){
-	        Classifier classifier = ((Classifier) getPreparedClassOption(this.baseLearnerOption)).copy();
-	        classifier.resetLearning();
-	        classifier.prepareForUse();
-	        classClassifiers.add(classifier);
-	        classWindows.add(new LinkedList<Instance>());
+	        classWindows.add(sparseInstances
+	        		? new CSESparseClassWindow(ih.numAttributes(), windowSize, numericAtts, nominalAtts, nominalOffsets)
+	        		: new CSEClassWindow(ih.numAttributes(), windowSize, numericAtts, nominalAtts, nominalOffsets));
 	        classQuantileSketches.add(new ArrayList<UpdateDoublesSketch>());
-	        classNominalCounts.add(new ArrayList<ArrayList<Integer>>());
-	        //For each numeric feature, create a quantile sketch
-	        for(Integer a:numericAtts){
-	        	classQuantileSketches.get(i).add(DoublesSketch.builder().setK(qsKOption.getValue()).build());
+	        classReferenceCDFs.add(new ArrayList<CSEReferenceCDF>());
+	        if(!ownsClass(i)){
+	        	classClassifiers.add(null);
+	        	classReferenceEpochs.add(null);
+	        	continue;
+	        }
+	        if(sharedBayes != null){
+	        	classClassifiers.add(null);
+	        } else {
+	        	Classifier classifier = ((Classifier) getPreparedClassOption(this.baseLearnerOption)).copy();
+	        	classifier.resetLearning();
+	        	classifier.prepareForUse();
+	        	classClassifiers.add(classifier);
 	        }
-	        for(Integer a:nominalAtts){
-	        	classNominalCounts.get(i).add(new ArrayList<Integer>(Collections.nCopies((int)(nominalVarsNumValues.get(a)), 0)));
+	        classNominalCounts[i] = new long[nominalOffsets[nominalAtts.length]];
+	        classReferenceEpochs.add(numEpochs == 0 ? null : new CSEReferenceEpochs(numEpochs, epochSize,
+	        		qsKOption.getValue(), numericAtts.length, classNominalCounts[i].length));
+	        if(numEpochs > 0 && sketchStore != null){
+	        	classReferenceEpochs.get(i).storeIn(sketchStore, i);
+	        }
+	        //For each numeric feature, create a quantile sketch
+	        for(int j = 0; j < numericAtts.length; j++){
+	        	classQuantileSketches.get(i).add(sketchStore != null ? sketchStore.newSketch(i, j)
+	        			: DoublesSketch.builder().setK(qsKOption.getValue()).build());
+	        	classReferenceCDFs.get(i).add(new CSEReferenceCDF());
 	        }
 		}
 	}
 	
+	//Restricts this ensemble to the classes from (inclusive) to to (exclusive), as one shard of a ShardedCSE. Must be
+	//called before the model context is set. Other classes get no classifier and a vote of 0
+	public void setOwnedClasses(int from, int to){
+		this.shardFrom = from;
+		this.shardTo = to;
+	}
+	
+	public boolean ownsClass(int c){
+		return c >= ownedFrom && c < ownedTo;
+	}
+	
+	//Empties the window of class c, which another shard owns, as a drift emptied the owner's window. It is drained
+	//oldest first, as the owner drains it, so both are left with the same running sums
+	public void drainClassWindow(int c){
+		if(ownsClass(c)){
+			throw new IllegalArgumentException("Class " + c + " is owned by this shard");
+		}
+		CSEClassWindow window = classWindows.get(c);
+		while(window.size() > 0){
+			window.removeOldest();
+		}
+		classDirty[c] = true;
+	}
+	
+	//Owned classes that drifted since their count in reported was taken, which is brought up to date
+	public int[] driftsSince(long[] reported){
+		int count = 0;
+		int[] drifted = new int[ownedTo - ownedFrom];
+		for(int c = ownedFrom; c < ownedTo; c++){
+			if(statistics.classDrifts(c) != reported[c]){
+				reported[c] = statistics.classDrifts(c);
+				drifted[count++] = c;
+			}
+		}
+		return Arrays.copyOf(drifted, count);
+	}
+	
+	//The class value of inst is masked while the class classifiers vote and restored before returning, even if one
+	//of them throws, so inst must not be read by another thread meanwhile
 	@Override
 	public double[] getVotesForInstance(Instance inst) {
-		Instance instCopy = inst.copy();
-		//double actualClass = inst.classValue();
-		
+		long start = collectTimings ? System.nanoTime() : 0L;
 		double[] votes = new double[numClasses];
-		for(double d = 0; d < numClasses; d++){
-			instCopy.setClassValue(0.0);
-			double[] preds = classClassifiers.get((int)d).getVotesForInstance(instCopy);
-			
-			if(preds.length < 2){
-				votes[(int)d] = 0.0;
-			} else {
-				//votes[(int)d] = normaliseVotes(classClassifiers.get((int)d).getVotesForInstance(instCopy))[1];
-				votes[(int)d] = normaliseVotes(classClassifiers.get((int)d).getVotesForInstance(instCopy))[1];
+		double actualClass = inst.classValue();
+		inst.setClassValue(0.0);
+		try {
+			for(int d = ownedFrom; d < ownedTo; d++){
+				votes[d] = sharedBayes != null ? sharedBayes.positiveVote(inst, d)
+						: positiveVote(classClassifiers.get(d).getVotesForInstance(inst));
 			}
+		} finally {
+			inst.setClassValue(actualClass);
 		}
 		
+		if(collectTimings){
+			statistics.predictLatency().record(System.nanoTime() - start);
+		}
 		return votes;
 	}
+	
+	//Scores a block of instances, evaluating each class classifier once per instance. Classes are walked in the
+	//outer loop so each base learner is used for the whole block before moving on. votes[i] receives the votes for
+	//insts[i] and is reused if already allocated with numClasses entries. Class values are masked and restored as in
+	//getVotesForInstance
+	public double[][] getVotesForInstances(Instance[] insts, double[][] votes) {
+		if(votes == null || votes.length < insts.length){
+			double[][] grown = new double[insts.length][];
+			if(votes != null) System.arraycopy(votes, 0, grown, 0, votes.length);
+			votes = grown;
+		}
+		long start = collectTimings ? System.nanoTime() : 0L;
+		double[] actualClasses = new double[insts.length];
+		int masked = 0;
+		try {
+			for(int i = 0; i < insts.length; i++){
+				if(votes[i] == null || votes[i].length != numClasses) votes[i] = new double[numClasses];
+				actualClasses[i] = insts[i].classValue();
+				insts[i].setClassValue(0.0);
+				masked++;
+			}
+			
+			for(int d = ownedFrom; d < ownedTo; d++){
+				Classifier classifier = classClassifiers.get(d);
+				for(int i = 0; i < insts.length; i++){
+					votes[i][d] = sharedBayes != null ? sharedBayes.positiveVote(insts[i], d)
+							: positiveVote(classifier.getVotesForInstance(insts[i]));
+				}
+			}
+		} finally {
+			//Last first, so an instance appearing twice in the block gets back the value it had before the first
+			for(int i = masked - 1; i >= 0; i--){
+				insts[i].setClassValue(actualClasses[i]);
+			}
+		}
+		//Each instance of the block is recorded with the block's mean latency
+		if(collectTimings && insts.length > 0){
+			long perInstance = (System.nanoTime() - start) / insts.length;
+			for(int i = 0; i < insts.length; i++){
+				statistics.predictLatency().record(perInstance);
+			}
+		}
+		return votes;
+	}
+	
+	public double[][] getVotesForInstances(Instance[] insts) {
+		return getVotesForInstances(insts, null);
+	}
+	
+	//Vote of a one-vs-rest classifier for its positive class, as a fraction of all its votes
+	protected double positiveVote(double[] preds){
+		if(preds.length < 2) return 0.0;
+		double sum = 0.0;
+		for(double v:preds) sum += v;
+		return sum > 0 ? preds[1]/sum : 1/numClasses;
+	}
 
 	//Clears ensemble, will initialise on arrival of first instance
 	@Override
 	public void prepareForUse() {
         this.classClassifiers = null; 
+        if(trainingPool != null){
+        	trainingPool.shutdown();
+        	trainingPool = null;
+        }
+        if(driftTestExecutor != null){
+        	driftTestExecutor.shutdownNow();
+        	driftTestExecutor = null;
+        }
+        if(retrainExecutor != null){
+        	retrainExecutor.shutdownNow();
+        	retrainExecutor = null;
+        }
+        if(driftEvents != null){
+        	driftEvents.stopDispatcher();
+        }
+        closeSketchStore();
+	}
+	
+	protected void closeSketchStore(){
+		if(sketchStore != null){
+			sketchStore.close();
+			sketchStore = null;
+		}
+	}
+	
+	//Sketch of class c and numeric attribute j read from its updatable serialised form, in the sketch store if
+	//there is one
+	protected UpdateDoublesSketch loadSketch(int c, int j, byte[] bytes) throws IOException {
+		if(sketchStore != null){
+			return sketchStore.load(c, j, bytes);
+		}
+		return UpdateDoublesSketch.heapify(Memory.wrap(bytes));
+	}
+	
+	//Delivers each drift detected from now on to listener, on a daemon thread, until it is removed. Listeners
+	//must not block for long: events arriving while the ring is full are dropped. Events are only published with
+	//driftEventBufferSize set
+	public void addDriftListener(CSEDriftListener listener){
+		if(driftEventBufferSizeOption.getValue() == 0){
+			throw new IllegalStateException("Drift listeners need a driftEventBufferSize above 0");
+		}
+		getDriftListeners().add(listener);
+		if(getDriftEvents() != null){
+			getDriftEvents().startDispatcher(getDriftListeners());
+		}
+	}
+	
+	public void removeDriftListener(CSEDriftListener listener){
+		getDriftListeners().remove(listener);
+	}
+	
+	protected synchronized CopyOnWriteArrayList<CSEDriftListener> getDriftListeners(){
+		if(driftListeners == null){
+			driftListeners = new CopyOnWriteArrayList<CSEDriftListener>();
+		}
+		return driftListeners;
+	}
+	
+	//Ring of drift events, which may be drained directly instead of attaching listeners. Null before the model
+	//context is set or when driftEventBufferSize is 0. Set up by initialise, and again here after deserialisation
+	public synchronized CSEDriftEvents getDriftEvents(){
+		if(driftEvents == null && testPValues != null && driftEventBufferSizeOption.getValue() > 0){
+			driftEvents = new CSEDriftEvents(driftEventBufferSizeOption.getValue(), testPValues.length);
+			if(!getDriftListeners().isEmpty()){
+				driftEvents.startDispatcher(getDriftListeners());
+			}
+		}
+		return driftEvents;
+	}
+	
+	//Writes the full state of the ensemble to directory; see CSECheckpoint
+	public void writeCheckpoint(File directory, boolean incremental) throws IOException {
+		CSECheckpoint.write(this, directory, incremental);
+	}
+	
+	//Restores state written by writeCheckpoint. The model context must already have been set
+	public void restoreCheckpoint(File directory) throws IOException {
+		CSECheckpoint.restore(this, directory);
 	}
 	
 	public int getNumClassDrifts(){
@@ -172,188 +607,999 @@ public class CSE extends AbstractClassifier implements MultiClassClassifier {
 	
 	@Override
 	public void trainOnInstanceImpl(Instance inst) {
+		long start = collectTimings ? System.nanoTime() : 0L;
 		instSeen++;
+		double actualClass = inst.classValue();
+		
+		if(!activeRebuilds.isEmpty()){
+			swapCompletedRebuilds();
+		}
+		
+		if(negativeCandidates > 0){
+			routeNegatives(inst, (int)actualClass);
+		}
+		
 		//Train classifier
-		Instance instCopy = inst.copy();
-		double actualClass = instCopy.classValue();
+		if(sharedBayes != null){
+			trainSharedBayes(inst);
+		} else if(parallelTraining){
+			getTrainingPool().invoke(new ClassTrainingTask(inst, ownedFrom, ownedTo));
+		} else {
+			trainClassClassifiers(inst, ownedFrom, ownedTo);
+		}
 		
-		double[] votes = new double[numClasses];
-		for(double d = 0; d < numClasses; d++){
+		//Add instance to window of recent instances and push older instances to QS/table of counts
+		addToWindow((int)actualClass, inst);
 			
-			if(actualClass == d){
-				instCopy.setClassValue(1);
-				positiveExamplesSeen[(int)d]++;
-				classClassifiers.get((int)d).trainOnInstance(instCopy);
-			} else if(balanceClassifierExamples) {
-				instCopy.setClassValue(0);
-				
-				if(rng.nextDouble() < (double)positiveExamplesSeen[(int) d]/Math.max((double)(negativeExamplesSeen[(int) d] + positiveExamplesSeen[(int) d]), 1.0)){
-					classClassifiers.get((int)d).trainOnInstance(instCopy);
-					negativeExamplesSeen[(int)d]++;
+		checkForDrift((int)actualClass);
+		
+		if(collectTimings){
+			statistics.trainLatency().record(System.nanoTime() - start);
+		}
+	}
+	
+	//Test for difference between QS and instWindow of class c, after training on one of its instances
+	protected void checkForDrift(int c){
+		if(asyncDriftTesting){
+			applyCompletedDriftTests();
+			if(isTestPoint(c)){
+				if(testInFlight[c]){
+					testPending[c] = true;
+				} else {
+					submitDriftTest(c);
 				}
-				//instCopy.setWeight(((double)positiveExamplesSeen[(int) d]/(double)negativeExamplesSeen[(int) d]));
-			} else {
-				instCopy.setClassValue(0);
-				negativeExamplesSeen[(int)d]++;
-				classClassifiers.get((int)d).trainOnInstance(instCopy);
 			}
-
-	        
+		} else if(isTestPoint(c) && testForDrift(c)){
+			handleDrift(c, testPValues);
 		}
-		
-		//Add instance to window of recent instances and push older instances to QS/table of counts
-		classWindows.get((int)actualClass).push(inst);
-		if(classWindows.get((int)actualClass).size() > windowSizeOption.getValue()){
-			Instance oldInst = classWindows.get((int)actualClass).removeLast();
-			int index = 0;
-			for(Integer a:numericAtts){
-	        	classQuantileSketches.get((int)actualClass).get(index).update(oldInst.value(a));
-	        	index++;
-	        }
-			index = 0;
-			for(Integer a:nominalAtts){
-	        	classNominalCounts.get((int)actualClass).get(index).set((int)oldInst.value(a), 
-	        			classNominalCounts.get((int)actualClass).get(index).get((int)oldInst.value(a))+1);
-	        	index++;
-	        }
+	}
+	
+	public void trainOnInstances(Instance[] instances){
+		trainOnInstances(instances, 0, instances.length);
+	}
+	
+	//Trains on instances[first, last) as trainOnInstance would one at a time, but class-major. The block is cut
+	//after each instance that may be a test point of its class, and within each run every class classifier trains
+	//on the run in order, then the windows are pushed, then the last instance's class is checked for drift, so
+	//tests and retraining see the state they would have seen. Routed negatives depend on every window, so with
+	//negativeCandidates the instances are trained one at a time
+	public void trainOnInstances(Instance[] instances, int first, int last){
+		if(negativeCandidates > 0){
+			for(int i = first; i < last; i++) trainOnInstance(instances[i]);
+			return;
 		}
+		int start = first;
+		while(start < last){
+			if(!isTrainable(instances[start])){
+				start++;
+				continue;
+			}
+			long startTime = collectTimings ? System.nanoTime() : 0L;
+			int end = runEnd(instances, start, last);
+			for(int i = start; i < end; i++){
+				trainingWeightSeenByModel += instances[i].weight();
+			}
+			instSeen += end - start;
 			
-		//Test for difference between QS and instWindow
-		if(classWindows.get((int)actualClass).size() >= windowSizeOption.getValue() & 
-				classQuantileSketches.get((int)actualClass).get(0).getN() >= windowSizeOption.getValue()
-				& positiveExamplesSeen[(int)actualClass] % windowSizeOption.getValue() == 0){
-			ArrayList<Double> qsPValues = new ArrayList<Double>();				
+			if(!activeRebuilds.isEmpty()){
+				swapCompletedRebuilds();
+			}
+			if(sharedBayes != null){
+				for(int i = start; i < end; i++) trainSharedBayes(instances[i]);
+			} else if(parallelTraining){
+				getTrainingPool().invoke(new ClassTrainingTask(instances, start, end, ownedFrom, ownedTo));
+			} else {
+				trainClassClassifiers(instances, start, end, ownedFrom, ownedTo);
+			}
+			for(int i = start; i < end; i++){
+				addToWindow((int)instances[i].classValue(), instances[i]);
+			}
+			checkForDrift((int)instances[end - 1].classValue());
 			
-			int index = 0;
-			for(Integer a:numericAtts){
-				KolmogorovSmirnovTest ksTest = new KolmogorovSmirnovTest();
-				QuantileKSTest ksTest2 = new QuantileKSTest();
-	        	//Build QS for feature in window
-	        	UpdateDoublesSketch qs = DoublesSketch.builder().setK(windowSizeOption.getValue()).build();
-	        	for(Instance i:classWindows.get((int)actualClass)){
-	        		qs.update(i.value(a));
-	        	}
-	        	
-	        	//Test
-				double tStat = QuantileKSTest.computeKSDelta(classQuantileSketches.get((int)actualClass).get(index), qs);
-				qsPValues.add(ksTest.approximateP(tStat, 
-						Math.min((int)(classQuantileSketches.get((int)actualClass).get(index).getK()),
-								(int)(classQuantileSketches.get((int)actualClass).get(index).getN())), 
-						(int)(classWindows.get((int)actualClass).size())));
-				index++;
-				
+			if(collectTimings){
+				long perInstance = (System.nanoTime() - startTime) / (end - start);
+				for(int i = start; i < end; i++) statistics.trainLatency().record(perInstance);
+			}
+			start = end;
+		}
+	}
+	
+	//As AbstractClassifier.trainOnInstance decides
+	protected static boolean isTrainable(Instance inst){
+		return inst.weight() > 0.0 && !inst.classIsMissing();
+	}
+	
+	//End of the run of trainable instances from start: just after the first that brings the positives of an owned
+	//class to a multiple of testInterval, or at the first untrainable instance or last
+	protected int runEnd(Instance[] instances, int start, int last){
+		int end = start;
+		while(end < last && isTrainable(instances[end])){
+			int c = (int)instances[end++].classValue();
+			if(ownsClass(c) && (positiveExamplesSeen[c] + ++runPositives[c]) % testInterval == 0) break;
+		}
+		for(int i = start; i < end; i++){
+			runPositives[(int)instances[i].classValue()] = 0;
+		}
+		return end;
+	}
+	
+	protected void addToWindow(int c, Instance inst){
+		classDirty[c] = true;
+		CSEClassWindow window = classWindows.get(c);
+		if(window.isFull() && ownsClass(c)){
+			addToReference(c, window, window.oldestSlot());
+		}
+		window.push(inst);
+	}
+	
+	//Pushes the instance held in a window slot into the quantile sketches and table of counts of class c
+	protected void addToReference(int c, CSEClassWindow window, int slot){
+		ArrayList<UpdateDoublesSketch> sketches = classQuantileSketches.get(c);
+		long[] counts = classNominalCounts[c];
+		CSEReferenceEpochs epochs = classReferenceEpochs.get(c);
+		if(sparseInstances){
+			addNonZerosToReference(c, sketches, counts, epochs, (CSESparseClassWindow) window, slot);
+		} else {
+			for(int j = 0; j < numericAtts.length; j++){
+	        	updateSketch(c, j, sketches, window.value(slot, numericAtts[j]));
+	        }
+			for(int j = 0; j < nominalAtts.length; j++){
+				int index = nominalOffsets[j] + (int)window.value(slot, nominalAtts[j]);
+	        	counts[index]++;
+	        	if(epochs != null) epochs.count(index);
 	        }
+		}
+		referenceSizes[c]++;
+		if(epochs != null){
+			referenceSizes[c] -= epochs.added(sketches, counts);
+			//Closing an epoch changes the merged reference, though not always its n
+			if(epochs.currentSize() == 0){
+				for(int j = 0; j < numericAtts.length; j++){
+					classReferenceCDFs.get(c).get(j).invalidate();
+				}
+			}
+		}
+	}
+	
+	//Sparse reference update: only non-zero values reach the sketches and counts. The zeros are recovered at test time
+	//from the reference size; see referenceZeros
+	protected void addNonZerosToReference(int c, ArrayList<UpdateDoublesSketch> sketches, long[] counts, CSEReferenceEpochs epochs,
+			CSESparseClassWindow window, int slot){
+		for(int i = 0; i < window.nonZeros(slot); i++){
+			int a = window.nonZeroIndex(slot, i);
+			double v = window.nonZeroValue(slot, i);
+			int j = numericIndexOf[a];
+			if(j >= 0){
+				updateSketch(c, j, sketches, v);
+			}
+			j = nominalIndexOf[a];
+			if(j >= 0){
+				int index = nominalOffsets[j] + (int)v;
+				counts[index]++;
+				if(epochs != null) epochs.count(index);
+			}
+		}
+	}
+	
+	//Adds v to class c's sketch of numeric attribute j, first moving the sketch to a larger region if it fills its
+	//region of the sketch store
+	protected void updateSketch(int c, int j, ArrayList<UpdateDoublesSketch> sketches, double v){
+		UpdateDoublesSketch sketch = sketches.get(j);
+		if(sketchStore != null && sketchStore.isFull(c, j, sketch)){
+			sketch = sketchStore.grow(c, j, sketch);
+			sketches.set(j, sketch);
+		}
+		sketch.update(v);
+	}
+	
+	//Zeros of a numeric attribute that its reference sketch leaves out, for a reference of referenceSize instances
+	protected long referenceZeros(DoublesSketch reference, long referenceSize){
+		return sparseInstances ? Math.max(0, referenceSize - reference.getN()) : 0;
+	}
+	
+	//Sketches class c is tested against: its own sketches, or with a bounded reference its epochs merged
+	protected List<UpdateDoublesSketch> referenceSketches(int c){
+		CSEReferenceEpochs epochs = classReferenceEpochs.get(c);
+		return epochs == null ? classQuantileSketches.get(c) : epochs.merged(classQuantileSketches.get(c));
+	}
+	
+	protected boolean isTestPoint(int c){
+		return ownsClass(c) && classWindows.get(c).size() >= windowSize & referenceSizes[c] >= windowSize
+				& positiveExamplesSeen[c] % testInterval == 0;
+	}
+	
+	//Runs this cycle's tests of class c's window against its reference and combines the p-values, leaving the
+	//p-values in testPValues
+	protected boolean testForDrift(int c){
+		return testForDrift(c, nextFirstTest(c));
+	}
+	
+	//Runs the tests from firstTest on without moving the rotation, as for a test taken from it earlier
+	protected boolean testForDrift(int c, int firstTest){
+		return driftDetected(classWindows.get(c), referenceSketches(c), classReferenceCDFs.get(c), classNominalCounts[c], referenceSizes[c],
+				firstTest, testPValues, testRanks, testLevels);
+	}
+	
+	//First of the tests class c runs this cycle, moving its rotation on to the tests that follow them
+	protected int nextFirstTest(int c){
+		int first = firstTests[c];
+		if(testPValues.length > 0){
+			firstTests[c] = (first + testsPerCycle) % testPValues.length;
+		}
+		return first;
+	}
+	
+	//Replaces the classifier of drifted class c and publishes the drift with the p-values of its test
+	protected void handleDrift(int c, double[] pValues){
+		numClassDrifts++;
+		CSEDriftEvents events = driftEvents != null ? driftEvents : getDriftEvents();
+		long start = events != null ? System.nanoTime() : 0L;
+		replaceClassifier(c);
+		if(events != null){
+			events.publish(instSeen, c, pValues, System.nanoTime() - start);
+		}
+	}
+	
+	//Tests are decided by comparing their statistics with critical values; see CSEDecisionEngine. When there is a
+	//drift pValues receives the p-value of each numeric attribute and then each nominal attribute, NaN where
+	//untested; otherwise it is left holding the test statistics, -1 for KS tests the pre-screen cleared. ranks is
+	//scratch space for one rank per test and levels for the level count of each nominal attribute. Only the
+	//references of the tests run need be present
+	protected boolean driftDetected(CSEClassWindow window, List<? extends DoublesSketch> references,
+			List<CSEReferenceCDF> referenceCDFs, long[] referenceCounts, long referenceSize, int firstTest,
+			double[] pValues, int[] ranks, int[] levels){
+		long start = collectTimings ? System.nanoTime() : 0L;
+		
+		//Test statistics first, held in pValues: KS distance against the sorted window, maintained as instances are
+		//pushed and evicted, and chi-square statistic of the window's level counts against the reference counts.
+		//Tests are numbered numeric attributes first, and testsPerCycle of them are run from firstTest on, wrapping
+		Arrays.fill(pValues, Double.NaN);
+		long[] observed = window.nominalCounts();
+		long[] expected = referenceCounts;
+		if(sparseInstances && nominalAtts.length > 0){
+			CSESparseClassWindow.fillZeroLevels(expected, nominalOffsets, nominalAtts.length, referenceSize);
+		}
+		//The nominal tests of the cycle are at most two runs of nominal attributes, either side of the wrap
+		int lastTest = firstTest + testsPerCycle;
+		chiSquareRange(observed, expected, firstTest, Math.min(lastTest, pValues.length), pValues, levels);
+		chiSquareRange(observed, expected, 0, lastTest - pValues.length, pValues, levels);
+		//Every KS test is counted, as a distance is never NaN
+		int numTests = 0;
+		for(int i = 0; i < testsPerCycle; i++){
+			int t = firstTest + i < pValues.length ? firstTest + i : firstTest + i - pValues.length;
+			if(t < numericAtts.length || !Double.isNaN(pValues[t])) numTests++;
+		}
+		
+		//A KS test whose bounded distance has no rank is cleared without walking the window; it is marked -1 so
+		//its distance can be found if the class drifts after all. The screen reads the cached reference CDF as it
+		//is, adding the most the reference can have moved since, so a cleared test never rebuilds it
+		int count = 0;
+		for(int i = 0; i < testsPerCycle; i++){
+			int t = firstTest + i < pValues.length ? firstTest + i : firstTest + i - pValues.length;
+			if(t < numericAtts.length){
+				DoublesSketch reference = references.get(t);
+				CSEReferenceCDF referenceCDF = referenceCDFs.get(t);
+				long zeros = referenceZeros(reference, referenceSize);
+				double shift = referenceCDF.maxShift(reference.getN() + zeros);
+				int n = (int)Math.min(reference.getK(), reference.getN() + zeros);
+				if(preScreenPoints > 0 && shift < 1.0 && decisionEngine.ksRank(window.ksUpperBound(t, referenceCDF, preScreenPoints)
+						+ shift, n, window.size(), numTests) == CSEDecisionEngine.NO_RANK){
+					pValues[t] = -1;
+					ranks[count++] = CSEDecisionEngine.NO_RANK;
+					if(collectTimings) statistics.recordScreenedTest();
+				} else {
+					if(shift > referenceCacheTolerance) referenceCDF.refresh(reference, zeros);
+					pValues[t] = window.ksDistance(t, referenceCDF);
+					ranks[count++] = decisionEngine.ksRank(pValues[t], n, window.size(), numTests);
+				}
+			} else if(!Double.isNaN(pValues[t])){
+				ranks[count++] = decisionEngine.chiSquareRank(pValues[t], levels[t - numericAtts.length] - 1, numTests);
+			}
+		}
+		boolean drift = CSEDecisionEngine.reject(ranks, count);
+		if(drift){
+			for(int j = 0; j < numericAtts.length; j++){
+				if(!(pValues[j] < 0)) continue;
+				CSEReferenceCDF referenceCDF = referenceCDFs.get(j);
+				long zeros = referenceZeros(references.get(j), referenceSize);
+				if(referenceCDF.isStale(references.get(j).getN() + zeros, referenceCacheTolerance)){
+					referenceCDF.refresh(references.get(j), zeros);
+				}
+				pValues[j] = window.ksDistance(j, referenceCDF);
+			}
+			toPValues(window, references, levels, referenceSize, pValues);
+		}
+		if(collectTimings){
+			statistics.recordDriftTest(System.nanoTime() - start);
+		}
+		return drift;
+	}
+	
+	//Chi-square statistics into pValues for the tests in [fromTest, toTest) that are nominal attributes
+	protected void chiSquareRange(long[] observed, long[] expected, int fromTest, int toTest, double[] pValues, int[] levels){
+		int from = Math.max(fromTest, numericAtts.length) - numericAtts.length;
+		int to = toTest - numericAtts.length;
+		if(from < to){
+			CSETestKernels.chiSquare(observed, expected, nominalOffsets, from, to, pValues, numericAtts.length, levels);
+		}
+	}
+	
+	//Converts the statistics in pValues to p-values, for reporting a drift
+	protected void toPValues(CSEClassWindow window, List<? extends DoublesSketch> references, int[] levels,
+			long referenceSize, double[] pValues){
+		KolmogorovSmirnovTest ksTest = new KolmogorovSmirnovTest();
+		for(int j = 0; j < numericAtts.length; j++){
+			if(Double.isNaN(pValues[j])) continue;
+			DoublesSketch reference = references.get(j);
+			pValues[j] = ksTest.approximateP(pValues[j], 
+					(int)Math.min(reference.getK(), reference.getN() + referenceZeros(reference, referenceSize)), 
+					window.size());
+		}
+		for(int j = 0; j < nominalAtts.length; j++){
+			int i = numericAtts.length + j;
+			if(Double.isNaN(pValues[i])) continue;
+			pValues[i] = chiSquareTestDataSetsComparison(pValues[i],(double) levels[j] - 1);
+		}
+	}
+	
+	//Resets the reference for class c and trains a new classifier on its window, emptying the window into the reference
+	protected void replaceClassifier(int c){
+		finishRebuild(c);
+		long start = collectTimings ? System.nanoTime() : 0L;
+		statistics.recordDrift(c);
+		CSEClassWindow window = classWindows.get(c);
+		
+    	//Delete old QS and table of counts. Stored sketches of an unbounded reference start again in new regions, so
+		//the blocks of the regions they outgrew can be freed
+		boolean restartStore = sketchStore != null && classReferenceEpochs.get(c) == null;
+		if(restartStore){
+			sketchStore.clearClass(c);
+		}
+		for(int j = 0; j < numericAtts.length; j++){
+			if(restartStore){
+				classQuantileSketches.get(c).set(j, sketchStore.newSketch(c, j));
+			} else {
+				classQuantileSketches.get(c).get(j).reset();
+			}
+    		classReferenceCDFs.get(c).get(j).invalidate();
+    	}
+		Arrays.fill(classNominalCounts[c], 0);
+		if(classReferenceEpochs.get(c) != null){
+			classReferenceEpochs.get(c).clear();
+		}
+		referenceSizes[c] = 0;
+    	
+		positiveExamplesSeen[c] = window.size();
+		negativeExamplesSeen[c] = window.size();
+		
+    	//Train a new model on window of instances, oldest first, and push them into the QS. For a background build
+    	//the examples are collected and the model is trained on the retraining thread
+    	//System.out.println(instSeen + "Class drift for class " + c);
+		//Shared NaiveBayes models are rebuilt in place, which is quick enough to never need the background
+		boolean shared = sharedBayes != null;
+		boolean background = backgroundRetraining && !shared;
+		Classifier newClassifier = background || shared ? null : takePrototype();
+		ArrayList<Instance> examples = background ? new ArrayList<Instance>(2 * window.size()) : null;
+		if(shared){
+			sharedBayes.resetClass(c);
+		}
+		int numSources = findNegativeSources(c);
+    	while(window.size() > 0){
+    		int oldSlot = window.oldestSlot();
+    		window.removeOldest();
+    		//if(Math.random() > 0.5)
+    		if(shared){
+    			sharedBayes.retrainOn(c, window, oldSlot, 1.0);
+    		} else {
+    			retrainOn(newClassifier, examples, window, oldSlot, 1.0);
+    		}
+    		long other = otherSlot(c, numSources);
+    		if(other >= 0 && shared){
+    			sharedBayes.retrainOn(c, classWindows.get((int)(other >>> 32)), (int)other, 0.0);
+    		} else if(other >= 0){
+    			retrainOn(newClassifier, examples, classWindows.get((int)(other >>> 32)), (int)other, 0.0);
+    		}
+    		addToReference(c, window, oldSlot);
+    	}
+    	classGenerations[c]++;
+    	classDirty[c] = true;
+    	
+    	if(background){
+    		ClassRebuild rebuild = new ClassRebuild(c, examples);
+    		pendingRebuilds[c] = rebuild;
+    		activeRebuilds.add(rebuild);
+    		getRetrainExecutor().execute(rebuild);
+    	} else if(!shared){
+    		classClassifiers.set(c, newClassifier);
+    	}
+    	if(collectTimings && background){
+    		statistics.addRetrainTime(System.nanoTime() - start);
+    	} else if(collectTimings){
+    		statistics.recordRetrain(System.nanoTime() - start);
+    	}
+	}
+	
+	//Trains newClassifier on the instance in a window slot relabelled as label, or adds a copy of it to examples
+	//when the classifier is being built in the background
+	protected void retrainOn(Classifier newClassifier, ArrayList<Instance> examples, CSEClassWindow source, int slot, double label){
+		Instance example;
+		boolean reused = examples == null && reuseTrainingInstances;
+		if(reused){
+			if(retrainScratch == null){
+				retrainScratch = new DenseInstance(ih.numAttributes());
+				retrainScratch.setDataset(ih);
+			}
+			example = retrainScratch;
+			source.load(slot, example);
+		} else {
+			example = source.toInstance(slot, ih);
+		}
+		example.setClassValue(label);
+		if(examples != null){
+			examples.add(example);
+		} else {
+			newClassifier.trainOnInstance(example);
+		}
+		if(reused){
+			source.unload(slot, example);
+		}
+	}
+	
+	//Instance owned by the calling thread that training examples are loaded into when instances are reused
+	protected Instance getScratchInstance(){
+		if(scratchInstances == null){
+			synchronized(this){
+				if(scratchInstances == null) scratchInstances = new ThreadLocal<Instance>();
+			}
+		}
+		Instance scratch = scratchInstances.get();
+		if(scratch == null){
+			scratch = new DenseInstance(ih.numAttributes());
+			scratch.setDataset(ih);
+			scratchInstances.set(scratch);
+		}
+		return scratch;
+	}
+	
+	protected void loadScratchInstance(Instance scratch, Instance inst){
+		for(int a = 0; a < ih.numAttributes(); a++){
+			scratch.setValue(a, inst.value(a));
+		}
+		scratch.setWeight(inst.weight());
+	}
+	
+	//Untrained base learner from the prototype pool, topped back up on the retraining thread
+	protected Classifier takePrototype(){
+		if(prototypePoolSizeOption.getValue() == 0){
+			return ((Classifier) getPreparedClassOption(this.baseLearnerOption)).copy();
+		}
+		Classifier prototype = classifierPrototypes.poll();
+		getRetrainExecutor().execute(() -> classifierPrototypes.add(((Classifier) getPreparedClassOption(this.baseLearnerOption)).copy()));
+		return prototype != null ? prototype : ((Classifier) getPreparedClassOption(this.baseLearnerOption)).copy();
+	}
+	
+	//Swaps in replacement classifiers whose background build has finished, after training them on the examples
+	//their class received while they were being built. A build that failed is rethrown
+	protected void swapCompletedRebuilds(){
+		for(int i = activeRebuilds.size() - 1; i >= 0; i--){
+			ClassRebuild rebuild = activeRebuilds.get(i);
+			if(rebuild.done){
+				activeRebuilds.remove(i);
+				swapRebuild(rebuild);
+			}
+		}
+	}
+	
+	//Waits for the pending rebuild of class c, if any, and swaps it in, rethrowing its failure if it failed. If the
+	//wait is interrupted the rebuild is abandoned and the class keeps its old classifier
+	protected void finishRebuild(int c){
+		ClassRebuild rebuild = pendingRebuilds[c];
+		if(rebuild == null) return;
+		activeRebuilds.remove(rebuild);
+		synchronized(rebuild){
+			while(!rebuild.done){
+				try {
+					rebuild.wait();
+				} catch (InterruptedException e) {
+					pendingRebuilds[c] = null;
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		swapRebuild(rebuild);
+	}
+	
+	protected void swapRebuild(ClassRebuild rebuild){
+		pendingRebuilds[rebuild.classIndex] = null;
+		if(rebuild.failure != null){
+			throw new RuntimeException("Background retraining of class " + rebuild.classIndex + " failed", rebuild.failure);
+		}
+		rebuild.trainArrivals();
+		classClassifiers.set(rebuild.classIndex, rebuild.classifier);
+		classDirty[rebuild.classIndex] = true;
+	}
+	
+	//Trains class d's classifier on an example, also queueing a copy for its replacement if one is being built
+	protected void trainClass(int d, Instance example){
+		classClassifiers.get(d).trainOnInstance(example);
+		classDirty[d] = true;
+		ClassRebuild rebuild = pendingRebuilds[d];
+		if(rebuild != null){
+			rebuild.arrivals.add(example.copy());
+		}
+	}
+	
+	protected ThreadPoolExecutor getRetrainExecutor(){
+		if(retrainExecutor == null){
+			retrainExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), runnable -> {
+						Thread thread = new Thread(runnable, "CSE-retrain");
+						thread.setDaemon(true);
+						return thread;
+					});
+		}
+		return retrainExecutor;
+	}
+	
+	//Background build of a replacement classifier for one class. The retraining thread trains it on the window
+	//examples and then on any examples that arrived meanwhile; the training thread trains it on the few that
+	//arrive after that and swaps it in. A build is done whether it succeeds or fails, so waiting for it always ends
+	protected class ClassRebuild implements Runnable {
+		
+		final int classIndex;
+		final ArrayList<Instance> examples;
+		final ConcurrentLinkedQueue<Instance> arrivals = new ConcurrentLinkedQueue<Instance>();
+		Classifier classifier;
+		volatile Throwable failure;
+		volatile boolean done;
+		
+		ClassRebuild(int classIndex, ArrayList<Instance> examples){
+			this.classIndex = classIndex;
+			this.examples = examples;
+		}
+		
+		@Override
+		public void run() {
+			long start = collectTimings ? System.nanoTime() : 0L;
+			try {
+				classifier = takePrototype();
+				for(Instance example:examples){
+					classifier.trainOnInstance(example);
+				}
+				examples.clear();
+				trainArrivals();
+				if(collectTimings){
+					statistics.recordRetrain(System.nanoTime() - start);
+				}
+			} catch (Throwable t) {
+				failure = t;
+			} finally {
+				synchronized(this){
+					done = true;
+					notifyAll();
+				}
+			}
+		}
+		
+		void trainArrivals(){
+			Instance example;
+			while((example = arrivals.poll()) != null){
+				classifier.trainOnInstance(example);
+			}
+		}
+	}
+	
+	//Snapshots the window and reference of class c and queues a drift test for it on the background thread.
+	//If the queue is full the test runs inline instead. Test points reached while the test is in flight are
+	//tested together once its result lands, so no test point goes untested
+	protected void submitDriftTest(int c){
+		CSEClassWindow windowSnapshot = classWindows.get(c).snapshot();
+		ArrayList<CompactDoublesSketch> referenceSnapshots = new ArrayList<CompactDoublesSketch>(numericAtts.length);
+		ArrayList<CSEReferenceCDF> referenceCDFs = new ArrayList<CSEReferenceCDF>(numericAtts.length);
+		List<UpdateDoublesSketch> references = referenceSketches(c);
+		int firstTest = nextFirstTest(c);
+		for(int j = 0; j < numericAtts.length; j++){
+			//Only the numeric attributes in this cycle's tests are snapshot
+			int offset = j >= firstTest ? j - firstTest : j - firstTest + testPValues.length;
+			referenceSnapshots.add(offset < testsPerCycle ? references.get(j).compact() : null);
+			referenceCDFs.add(offset < testsPerCycle ? new CSEReferenceCDF() : null);
+		}
+		long[] countsSnapshot = classNominalCounts[c].clone();
+		long referenceSize = referenceSizes[c];
+		
+		DriftTestResult result = new DriftTestResult(c, classGenerations[c], positiveExamplesSeen[c], firstTest, testPValues.length,
+				nominalAtts.length);
+		//The result goes to the queue of the state it was taken from, which a restore replaces
+		ConcurrentLinkedQueue<DriftTestResult> completed = getCompletedDriftTests();
+		testInFlight[c] = true;
+		try {
+			getDriftTestExecutor().execute(() -> {
+				result.drift = driftDetected(windowSnapshot, referenceSnapshots, referenceCDFs, countsSnapshot, referenceSize,
+						firstTest, result.pValues, result.ranks, result.levels);
+				completed.add(result);
+			});
+		} catch (RejectedExecutionException e) {
+			testInFlight[c] = false;
+			if(testForDrift(c, firstTest)){
+				handleDrift(c, testPValues);
+			}
+		}
+	}
+	
+	//Applies background drift results that have completed since the last instance. Results for a class whose
+	//classifier has been replaced since the snapshot are dropped; results that arrive after the class's next test
+	//point are handled by the stale result policy. A test point the class reached meanwhile is then tested on its
+	//current window
+	protected void applyCompletedDriftTests(){
+		DriftTestResult result;
+		while((result = getCompletedDriftTests().poll()) != null){
+			int c = result.classIndex;
+			testInFlight[c] = false;
+			if(result.generation == classGenerations[c]){
+				applyDriftTestResult(result);
+			}
+			if(testPending[c]){
+				testPending[c] = false;
+				if(result.generation == classGenerations[c]){
+					submitDriftTest(c);
+				}
+			}
+		}
+	}
+	
+	//The stale result policy is consulted before the outcome, so Retest also repeats tests that found no drift
+	protected void applyDriftTestResult(DriftTestResult result){
+		int c = result.classIndex;
+		boolean stale = positiveExamplesSeen[c] - result.positivesAtSnapshot >= testInterval;
+		if(stale && staleResultPolicy == STALE_DISCARD) return;
+		if(stale && staleResultPolicy == STALE_RETEST){
+			if(testForDrift(c, result.firstTest)){
+				handleDrift(c, testPValues);
+			}
+		} else if(result.drift){
+			handleDrift(c, result.pValues);
+		}
+	}
+	
+	//Results queued before the ensemble was copied or deserialised are lost with the queue, so their classes are
+	//released to be tested again
+	protected synchronized ConcurrentLinkedQueue<DriftTestResult> getCompletedDriftTests(){
+		if(completedDriftTests == null){
+			completedDriftTests = new ConcurrentLinkedQueue<DriftTestResult>();
+			Arrays.fill(testInFlight, false);
+			Arrays.fill(testPending, false);
+		}
+		return completedDriftTests;
+	}
+	
+	//Drops the background drift tests and rebuilds of the state a restore replaces. Tests still running report to
+	//the dropped queue, and rebuilds still running are never swapped in
+	protected synchronized void discardBackgroundWork(){
+		completedDriftTests = null;
+		Arrays.fill(pendingRebuilds, null);
+		activeRebuilds.clear();
+	}
+	
+	protected ThreadPoolExecutor getDriftTestExecutor(){
+		if(driftTestExecutor == null){
+			driftTestExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(asyncQueueSizeOption.getValue()), runnable -> {
+						Thread thread = new Thread(runnable, "CSE-drift-test");
+						thread.setDaemon(true);
+						return thread;
+					});
+		}
+		return driftTestExecutor;
+	}
+	
+	//Outcome of a background drift test, tagged with the state of its class when the snapshot was taken
+	protected static class DriftTestResult {
+		
+		final int classIndex;
+		final int generation;
+		final int positivesAtSnapshot;
+		final int firstTest;
+		final double[] pValues;
+		final int[] ranks;
+		final int[] levels;
+		volatile boolean drift;
+		
+		DriftTestResult(int classIndex, int generation, int positivesAtSnapshot, int firstTest, int numTests, int numNominal){
+			this.classIndex = classIndex;
+			this.generation = generation;
+			this.positivesAtSnapshot = positivesAtSnapshot;
+			this.firstTest = firstTest;
+			this.pValues = new double[numTests];
+			this.ranks = new int[numTests];
+			this.levels = new int[numNominal];
+		}
+	}
+	
+	//Trains one-vs-rest classifiers for classes from (inclusive) to to (exclusive) on a private copy of inst, which
+	//stores the class even when inst is sparse, or on this thread's scratch instance loaded from inst
+	protected void trainClassClassifiers(Instance inst, int from, int to){
+		Instance instCopy;
+		if(reuseTrainingInstances){
+			instCopy = getScratchInstance();
+			loadScratchInstance(instCopy, inst);
+		} else {
+			instCopy = CSESparseClassWindow.copyStoringClass(inst);
+		}
+		double actualClass = inst.classValue();
+		double weight = inst.weight();
+		
+		for(int d = from; d < to; d++){
+			trainClassClassifier(d, actualClass, weight, instCopy);
+		}
+	}
+	
+	//Class-major training of classes [from, to) on instances[first, last): each class classifier trains on every
+	//instance in order before the next class starts, so a classifier's state stays in cache across the run
+	protected void trainClassClassifiers(Instance[] instances, int first, int last, int from, int to){
+		Instance[] copies = getRunCopies(last - first);
+		for(int i = first; i < last; i++){
+			if(reuseTrainingInstances){
+				loadScratchInstance(copies[i - first], instances[i]);
+			} else {
+				copies[i - first] = CSESparseClassWindow.copyStoringClass(instances[i]);
+			}
+		}
+		for(int d = from; d < to; d++){
+			for(int i = first; i < last; i++){
+				trainClassClassifier(d, instances[i].classValue(), instances[i].weight(), copies[i - first]);
+			}
+		}
+	}
+	
+	//Trains every class model at once through the shared NaiveBayes statistics. negativeExamplesSeen is only used
+	//to balance examples, which the shared models do not do, so it is not kept
+	protected void trainSharedBayes(Instance inst){
+		int c = (int)inst.classValue();
+		if(ownsClass(c)){
+			positiveExamplesSeen[c]++;
+			classDirty[c] = true;
+		}
+		sharedBayes.train(inst, c);
+	}
+	
+	//Trains class d's classifier on instCopy, an instance of actualClass, as a positive or negative example
+	protected void trainClassClassifier(int d, double actualClass, double weight, Instance instCopy){
+		if(negativeCandidates > 0 && actualClass != d){
+			if(routingWeights[d] == 0.0) return;
+			instCopy.setWeight(weight * routingWeights[d]);
+		}
+		
+		if(actualClass == d){
+			instCopy.setClassValue(1);
+			instCopy.setWeight(weight);
+			positiveExamplesSeen[d]++;
+			trainClass(d, instCopy);
+		} else if(balanceClassifierExamples) {
+			instCopy.setClassValue(0);
 			
-			index = 0;
-			for(Integer a:nominalAtts){
-	        	
-				//Build table of counts for window
-				long[] observed = new long[nominalVarsNumValues.get(a)];
-				Arrays.fill(observed, 0);
-	        	for(Instance i:classWindows.get((int)actualClass)){
-	        		observed[(int)i.value(a)]++;
-	        	}
-	        	
-	        	//Chi-square test table of counts for nominal attributes
-				ChiSquareTest cst = new ChiSquareTest();
-				long[] expected = convertIntegerListToLongArray(classNominalCounts.get((int)actualClass).get(index));
-				index++;
-				long[][] results = trimZeroes(observed, expected);
-				if(results == null){
-					continue;
+			if(classRngs[d].nextDouble() < (double)positiveExamplesSeen[d]/Math.max((double)(negativeExamplesSeen[d] + positiveExamplesSeen[d]), 1.0)){
+				trainClass(d, instCopy);
+				negativeExamplesSeen[d]++;
+			}
+			//instCopy.setWeight(((double)positiveExamplesSeen[d]/(double)negativeExamplesSeen[d]));
+		} else {
+			instCopy.setClassValue(0);
+			negativeExamplesSeen[d]++;
+			trainClass(d, instCopy);
+		}
+	}
+	
+	//Per thread copies of a run's instances for class-major training, scratch instances when they are reused
+	protected Instance[] getRunCopies(int length){
+		if(runCopies == null){
+			synchronized(this){
+				if(runCopies == null) runCopies = new ThreadLocal<Instance[]>();
+			}
+		}
+		Instance[] copies = runCopies.get();
+		if(copies == null || copies.length < length){
+			Instance[] grown = new Instance[Math.max(length, copies == null ? 16 : 2 * copies.length)];
+			for(int i = 0; i < grown.length; i++){
+				if(copies != null && i < copies.length){
+					grown[i] = copies[i];
+				} else if(reuseTrainingInstances){
+					grown[i] = new DenseInstance(ih.numAttributes());
+					grown[i].setDataset(ih);
 				}
-				
-				double testStat = cst.chiSquareDataSetsComparison(results[0],results[1]);
-				qsPValues.add(chiSquareTestDataSetsComparison(testStat,(double) results[1].length - 1));
-				
-	        }
-	        if(aggregateP(qsPValues)){
-	        	//System.out.println(instSeen + " - drift in class " + actualClass);
-	        	numClassDrifts++;
-	        	//Delete old QS and table of counts
-	        	index = 0;
-				for(Integer a:numericAtts){
-	        		classQuantileSketches.get((int)actualClass).get(index).reset();
-	        		index++;
-	        	}
-	        	index = 0;
-				for(Integer a:nominalAtts){
-					classNominalCounts.get((int)actualClass).set(index, 
-						new ArrayList<Integer>(Collections.nCopies((int)(nominalVarsNumValues.get(a)), 0)));
-	        		index++;
-	        	}
-	        	
-				positiveExamplesSeen[(int)actualClass] = classWindows.get((int)actualClass).size();
-				negativeExamplesSeen[(int)actualClass] = classWindows.get((int)actualClass).size();
-				
-	        	//Train a new model on window of instances and push them into the QS
-	        	//System.out.println(instSeen + "Class drift for class " + ((int)actualClass));
-	        	Classifier newClassifier = ((Classifier) getPreparedClassOption(this.baseLearnerOption)).copy();
-	        	int windowSize = classWindows.get((int)actualClass).size();
-	        	for(int i = 0; i < windowSize; i++){
-	        		Instance windowInst = classWindows.get((int)actualClass).removeLast();
-	        		//if(Math.random() > 0.5)
-	        		Instance posExample = windowInst.copy();
-	        		posExample.setClassValue(1.0);
-	        		newClassifier.trainOnInstance(posExample);
-	        		Instance negExample = getOtherInstance((int)actualClass);
-	        		if(negExample != null){
-		        		negExample.setClassValue(0.0);
-		        		newClassifier.trainOnInstance(negExample);
-	        		}
-	        		index = 0;
-					for(Integer a:numericAtts){
-		        		classQuantileSketches.get((int)actualClass).get(index).update(windowInst.value(a));
-		        		index++;
-		        	}
-	        		index = 0;
-					for(Integer a:nominalAtts){
-						classNominalCounts.get((int)actualClass).get(index).set((int)windowInst.value(a), 
-			        			classNominalCounts.get((int)actualClass).get(index).get((int)windowInst.value(a))+1);
-						
-
-		        		index++;
-		        	}
-	        	}
-	        	classClassifiers.set(((int)actualClass), newClassifier);
-	        }
+			}
+			copies = grown;
+			runCopies.set(copies);
 		}
+		return copies;
 	}
 	
-	private Instance getOtherInstance(int actualClass) {
-		int new_class = actualClass;
-		int instIndex = 0;
-		while(0 < 1){
-			new_class = (int)(rng.nextDouble() * numClasses);
-			if(new_class != actualClass){
-				if(classWindows.get(new_class).size() == 0) return null; //can't return classes from empty windows 
-				instIndex = (int)(rng.nextDouble()*classWindows.get(new_class).size());
-				break;
+	//Chooses which classes train inst as a negative: the negativeCandidates classes closest to it among a random
+	//sample of ROUTING_SAMPLE_FACTOR times as many, which are the ones most likely to confuse it, each with weight 1.
+	//The weight of the classes left out is spread over up to negativeCandidates of them drawn at random, so the
+	//total negative weight matches training on every class and each class keeps an expected weight of 1. Classes
+	//with fewer than two instances in their window score as closest
+	protected void routeNegatives(Instance inst, int actualClass){
+		Arrays.fill(routingWeights, 0.0);
+		int others = numClasses - 1;
+		int sampled = sampledClasses.length;
+		//Floyd's sampling of distinct other classes, marking each sampled class with weight -1 until it is placed
+		for(int i = 0, j = others - sampled; i < sampled; i++, j++){
+			int c = otherClass(sampled == others ? i : routingRng.nextInt(j + 1), actualClass);
+			if(routingWeights[c] != 0.0) c = otherClass(j, actualClass);
+			routingWeights[c] = -1.0;
+			sampledClasses[i] = c;
+		}
+		int found = 0;
+		for(int i = 0; i < sampled; i++){
+			int c = sampledClasses[i];
+			double score = routingScore(c, inst);
+			if(found == negativeCandidates && score >= candidateScores[found - 1]) continue;
+			int pos = found < negativeCandidates ? found++ : found - 1;
+			while(pos > 0 && candidateScores[pos - 1] > score){
+				candidateScores[pos] = candidateScores[pos - 1];
+				candidateClasses[pos] = candidateClasses[pos - 1];
+				pos--;
 			}
+			candidateScores[pos] = score;
+			candidateClasses[pos] = c;
+		}
+		for(int i = 0; i < sampled; i++){
+			routingWeights[sampledClasses[i]] = 0.0;
+		}
+		for(int i = 0; i < found; i++){
+			routingWeights[candidateClasses[i]] = 1.0;
 		}
-		return classWindows.get(new_class).get(instIndex).copy();
 		
+		int leftOut = others - found;
+		int drawn = Math.min(leftOut, negativeCandidates);
+		for(int i = 0; i < drawn; i++){
+			int c;
+			do {
+				c = otherClass(routingRng.nextInt(others), actualClass);
+			} while(routingWeights[c] != 0.0);
+			routingWeights[c] = (double)leftOut / drawn;
+		}
 	}
-
-	//Uses Benjamini & Yekutieli (2001) approach to adjust for multiple comparisons of p-values
-	public static boolean aggregateP(ArrayList<Double> qsPValues) {
-		Collections.sort(qsPValues, Collections.reverseOrder());
-		double q = 0.0;
-		for(double i = 0; i < qsPValues.size(); i++) q+= 1.0/(i+1);
-		for(int i = 0; i < qsPValues.size(); i++){
-			double z = qsPValues.size()/(qsPValues.size()-i);
-			double new_val = q*(((double)qsPValues.size())/((double)(qsPValues.size()-i)))*qsPValues.get(i);
-			if(q*(((double)qsPValues.size())/((double)(qsPValues.size()-i)))*qsPValues.get(i) < pValueAlpha) 
-				return true;
+	
+	//The i-th class other than actualClass
+	protected static int otherClass(int i, int actualClass){
+		return i < actualClass ? i : i + 1;
+	}
+	
+	//Cheap distance of inst from the window of class c: squared standardised distance to the window mean for
+	//numeric attributes, and -2 log of the smoothed window frequency of its level for nominal attributes
+	protected double routingScore(int c, Instance inst){
+		CSEClassWindow window = classWindows.get(c);
+		if(window.size() < 2) return Double.NEGATIVE_INFINITY;
+		double score = 0.0;
+		for(int j = 0; j < numericAtts.length; j++){
+			double x = inst.value(numericAtts[j]);
+			if(Double.isNaN(x)) continue;
+			double dev = x - window.mean(j);
+			score += dev * dev / (window.variance(j) + 1e-12);
 		}
-		return false;
+		long[] counts = window.nominalCounts();
+		for(int j = 0; j < nominalAtts.length; j++){
+			int levels = nominalOffsets[j + 1] - nominalOffsets[j];
+			int level = (int)inst.value(nominalAtts[j]);
+			score -= 2 * Math.log((counts[nominalOffsets[j] + level] + 1.0) / (window.size() + levels));
+		}
+		return score;
+	}
+	
+	protected ForkJoinPool getTrainingPool(){
+		if(trainingPool == null){
+			int threads = numThreadsOption.getValue() > 0 ? numThreadsOption.getValue() : Runtime.getRuntime().availableProcessors();
+			trainingPool = new ForkJoinPool(threads);
+		}
+		return trainingPool;
+	}
+	
+	//Splits the class range until chunks are small enough to train on one thread. Each class is only ever
+	//touched by one task, so per-class counters and random streams need no synchronisation
+	protected class ClassTrainingTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Instance[] instances;
+		private final int first;
+		private final int last;
+		private final int from;
+		private final int to;
+		
+		public ClassTrainingTask(Instance inst, int from, int to){
+			this(new Instance[]{inst}, 0, 1, from, to);
+		}
+		
+		//Trains classes [from, to) on the run instances[first, last)
+		public ClassTrainingTask(Instance[] instances, int first, int last, int from, int to){
+			this.instances = instances;
+			this.first = first;
+			this.last = last;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			int grain = Math.max(1, numClasses / (4 * getTrainingPool().getParallelism()));
+			if(to - from <= grain){
+				if(last - first == 1){
+					trainClassClassifiers(instances[first], from, to);
+				} else {
+					trainClassClassifiers(instances, first, last, from, to);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ClassTrainingTask(instances, first, last, from, mid),
+						new ClassTrainingTask(instances, first, last, mid, to));
+			}
+		}
+	}
+	
+	//Gathers the classes other than actualClass whose windows hold instances into negativeSources, returning how
+	//many there are. The other windows do not change while a class is retrained, so this is done once per rebuild
+	protected int findNegativeSources(int actualClass) {
+		int count = 0;
+		for(int k = 0; k < numClasses; k++){
+			if(k != actualClass && classWindows.get(k).size() > 0) negativeSources[count++] = k;
+		}
+		return count;
+	}
+	
+	//Picks a random instance of another class to use as a negative example when retraining class c, stratified over
+	//the classes: a class uniformly from the first numSources of negativeSources, then an instance uniformly from its
+	//window. Returned as its class in the high 32 bits and its window slot in the low 32 bits, or -1 if there are no
+	//sources. Draws come from c's own stream, so a shard draws what the whole ensemble would
+	private long otherSlot(int c, int numSources) {
+		if(numSources == 0) return -1;
+		int new_class = negativeSources[(int)(classRngs[c].nextDouble() * numSources)];
+		CSEClassWindow window = classWindows.get(new_class);
+		return ((long)new_class << 32) | window.slot((int)(classRngs[c].nextDouble() * window.size()));
 	}
 
 	
+	//Ensemble-wide counts, then per owned class its drifts, window fill, reference size, items retained by its
+	//sketches and estimated bytes of window and reference, then drift test, retraining and latency figures when
+	//timings are collected. Base learners are not included in the byte estimates
 	@Override
 	protected Measurement[] getModelMeasurementsImpl() {
-		// TODO Auto-generated method stub
-		return null;
+		ArrayList<Measurement> measurements = new ArrayList<Measurement>();
+		measurements.add(new Measurement("instances seen", instSeen));
+		measurements.add(new Measurement("class drifts", numClassDrifts));
+		if(classClassifiers == null){
+			return measurements.toArray(new Measurement[measurements.size()]);
+		}
+		for(int c = ownedFrom; c < ownedTo; c++){
+			CSEClassWindow window = classWindows.get(c);
+			long retained = 0;
+			long bytes = window.estimatedBytes() + 8L * classNominalCounts[c].length;
+			if(classReferenceEpochs.get(c) != null){
+				bytes += classReferenceEpochs.get(c).estimatedBytes();
+			}
+			for(int j = 0; j < numericAtts.length; j++){
+				UpdateDoublesSketch sketch = classQuantileSketches.get(c).get(j);
+				retained += sketch.getRetainedItems();
+				bytes += DoublesSketch.getUpdatableStorageBytes(sketch.getK(), sketch.getN())
+						+ classReferenceCDFs.get(c).get(j).estimatedBytes();
+			}
+			measurements.add(new Measurement("class " + c + " drifts", statistics.classDrifts(c)));
+			measurements.add(new Measurement("class " + c + " window fill", window.size() / (double)window.capacity()));
+			measurements.add(new Measurement("class " + c + " reference n", referenceSizes[c]));
+			measurements.add(new Measurement("class " + c + " reference retained items", retained));
+			measurements.add(new Measurement("class " + c + " estimated bytes", bytes));
+		}
+		if(sharedBayes != null){
+			measurements.add(new Measurement("shared NaiveBayes estimated bytes", sharedBayes.estimatedBytes()));
+		}
+		if(collectTimings){
+			statistics.addTimingMeasurements(measurements);
+		}
+		if(driftEvents != null){
+			measurements.add(new Measurement("dropped drift events", driftEvents.getDropped()));
+		}
+		return measurements.toArray(new Measurement[measurements.size()]);
 	}
 
 	@Override
@@ -362,14 +1608,6 @@ public class CSE extends AbstractClassifier implements MultiClassClassifier {
 		
 	}
 	
-	private long[] convertIntegerListToLongArray(ArrayList<Integer> integerList) {
-		long[] result = new long[integerList.size()];
-		for(int i = 0; i < integerList.size(); i++){
-			result[i] = integerList.get(i).longValue();
-		}
-		return result;
-	}
-
 	//Modified from apache package to directly take test statistic
     public double chiSquareTestDataSetsComparison(double testStat, double length)
             throws DimensionMismatchException, NotPositiveException, ZeroException,
@@ -382,53 +1620,6 @@ public class CSE extends AbstractClassifier implements MultiClassClassifier {
 
         }
 	
-	public double[] normaliseVotes(double[] votes){
-		double sum = 0.0;
-		double[] normVotes = new double[votes.length];
-		for(double v:votes) sum += v;
-		if(sum > 0){
-			for(int i=0; i < votes.length; i++) normVotes[i] = votes[i]/sum;
-		} else {
-			for(int i=0; i < votes.length; i++) normVotes[i] = 1/numClasses;
-		}
-		return normVotes;
-	}
-	
-	//Where two table of counts have zero for an entry, we remove both entries as being unobserved. Check chi-sq assumptions met
-	public long[][] trimZeroes(long observed[], long expected[]){
-		boolean[] zeroForBoth = new boolean[observed.length];
-		int newLength = 0;
-		for(int i = 0; i < observed.length; i++){
-			if(observed[i] == 0 & expected[i] == 0) {
-				zeroForBoth[i] = true;
-			} else {
-				zeroForBoth[i] = false;
-				newLength++;
-			}
-			if(expected[i] < 5 & !zeroForBoth[i]) return null;
-		}
-		if(newLength < 2) return null;
-		long[][] results = new long [2][newLength];
-		if(newLength == observed.length){
-			results[0] = observed;
-			results[1] = expected;
-			return results;
-		}
-		long observedNew[] = new long[newLength];
-		long expectedNew[] = new long[newLength];
-		int index = 0;
-		for(int i = 0; i < observed.length; i++){
-			if(!zeroForBoth[i]){
-				observedNew[index] = observed[i];
-				expectedNew[index] = expected[i];
-				index++;
-			}
-		}
-		results[0] = observedNew;
-		results[1] = expectedNew;
-		return results;
-	}
-
 	public int getK() {
 		return qsKOption.getValue();
 	}
@@ -0,0 +1,308 @@
+package moa.classifiers.meta;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Random;
+
+import com.yahoo.sketches.quantiles.UpdateDoublesSketch;
+
+import moa.classifiers.Classifier;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Checkpoints the full state of a CSE to a directory. Each checkpoint is a generation g of files:
+// ensemble-<g>.bin for counters, random streams and any shared NaiveBayes statistics, and one class-<c>-<g>.bin per
+// class holding its counters and test rotation, window columns, reference sketches in their native serialised
+// form, table of counts, reference epochs when the reference is bounded, and classifier. An incremental checkpoint
+// writes only the classes changed since the last one and keeps the earlier generation's files for the rest, so it is
+// only incremental when the directory still holds the checkpoint this ensemble last wrote or restored there.
+// manifest.bin names the generation of every file and is renamed into place last, after the files it names are
+// synced, so a crash at any point leaves the previous checkpoint whole. Files no manifest names are then deleted.
+// Files are memory-mapped when restored.
+public class CSECheckpoint {
+
+	protected static final long MAGIC = 0x4353454350543031L;
+	protected static final int VERSION = 6;
+	protected static final String MANIFEST = "manifest.bin";
+
+	//Writes a checkpoint of cse to directory. When incremental, classes unchanged since the last checkpoint keep
+	//their existing files; a checkpoint into a directory holding any other checkpoint is written in full. Pending
+	//background rebuilds are completed first; background drift tests still running are not recorded and their
+	//classes are tested again at their next test point after a restore
+	public static void write(CSE cse, File directory, boolean incremental) throws IOException {
+		directory.mkdirs();
+		for(int c = 0; c < cse.numClasses; c++){
+			cse.finishRebuild(c);
+		}
+
+		//Generation of the ensemble file, then of each class file
+		int[] previous = readPreviousManifest(directory, cse);
+		int[] generations = new int[cse.numClasses + 1];
+		int generation = previous == null ? 1 : previous[0] + 1;
+		incremental &= previous != null && isLastCheckpoint(cse, directory, previous[0]);
+		generations[0] = generation;
+		writeAtomically(ensembleFile(directory, generation), out -> {
+			writeHeader(out, cse);
+			out.writeInt(cse.instSeen);
+			out.writeInt(cse.numClassDrifts);
+			writeBytes(out, serialise(new Random[][]{{cse.rng, cse.routingRng}, cse.classRngs}));
+			writeBytes(out, cse.sharedBayes == null ? new byte[0] : serialise(cse.sharedBayes));
+		});
+
+		for(int c = 0; c < cse.numClasses; c++){
+			if(incremental && !cse.classDirty[c]){
+				generations[c + 1] = previous[c + 1];
+				continue;
+			}
+			final int classIndex = c;
+			writeAtomically(classFile(directory, c, generation), out -> writeClass(out, cse, classIndex));
+			generations[c + 1] = generation;
+		}
+
+		writeAtomically(new File(directory, MANIFEST), out -> {
+			writeHeader(out, cse);
+			for(int g:generations) out.writeInt(g);
+		});
+		for(int c = 0; c < cse.numClasses; c++){
+			cse.classDirty[c] = false;
+		}
+		cse.checkpointDirectory = directory.getCanonicalFile();
+		cse.checkpointGeneration = generation;
+		deleteUnreferenced(directory, generations);
+	}
+
+	//Restores the checkpoint the manifest of directory names into cse, which must already be configured with the
+	//same options and have had its model context set for the same header. Background drift tests and rebuilds
+	//of the state being replaced are dropped
+	public static void restore(CSE cse, File directory) throws IOException {
+		int[] generations = readManifest(map(new File(directory, MANIFEST)), cse);
+		cse.discardBackgroundWork();
+		ByteBuffer in = map(ensembleFile(directory, generations[0]));
+		readHeader(in, cse);
+		cse.instSeen = in.getInt();
+		cse.numClassDrifts = in.getInt();
+		Random[][] rngs = (Random[][]) deserialise(readBytes(in));
+		cse.rng = rngs[0][0];
+		cse.routingRng = rngs[0][1];
+		cse.classRngs = rngs[1];
+		byte[] sharedBayes = readBytes(in);
+		if(sharedBayes.length > 0 != (cse.sharedBayes != null)){
+			throw new IOException("Checkpoint was written with a different sharedNaiveBayes setting");
+		}
+		if(sharedBayes.length > 0){
+			cse.sharedBayes = (CSESharedNaiveBayes) deserialise(sharedBayes);
+		}
+
+		for(int c = 0; c < cse.numClasses; c++){
+			readClass(map(classFile(directory, c, generations[c + 1])), cse, c);
+			cse.classDirty[c] = false;
+		}
+		cse.checkpointDirectory = directory.getCanonicalFile();
+		cse.checkpointGeneration = generations[0];
+	}
+
+	//Whether the checkpoint of the given generation in directory is the one cse last wrote or restored, so the
+	//classes it has not changed since can keep their files
+	protected static boolean isLastCheckpoint(CSE cse, File directory, int generation) throws IOException {
+		return directory.getCanonicalFile().equals(cse.checkpointDirectory) && generation == cse.checkpointGeneration;
+	}
+
+	protected static File ensembleFile(File directory, int generation) {
+		return new File(directory, "ensemble-" + generation + ".bin");
+	}
+
+	protected static File classFile(File directory, int c, int generation) {
+		return new File(directory, "class-" + c + "-" + generation + ".bin");
+	}
+
+	protected static int[] readManifest(ByteBuffer in, CSE cse) throws IOException {
+		readHeader(in, cse);
+		int[] generations = new int[cse.numClasses + 1];
+		in.asIntBuffer().get(generations);
+		return generations;
+	}
+
+	//Generations of the checkpoint already in directory, or null if there is none this ensemble can build on
+	protected static int[] readPreviousManifest(File directory, CSE cse) {
+		File manifest = new File(directory, MANIFEST);
+		if(!manifest.exists()) return null;
+		try {
+			return readManifest(map(manifest), cse);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	//Deletes checkpoint files of earlier generations, and temporary files of interrupted writes
+	protected static void deleteUnreferenced(File directory, int[] generations) {
+		File[] files = directory.listFiles();
+		if(files == null) return;
+		for(File file:files){
+			String name = file.getName();
+			boolean stale = name.endsWith(".tmp");
+			if(name.startsWith("ensemble-") && name.endsWith(".bin")){
+				stale = !name.equals(ensembleFile(directory, generations[0]).getName());
+			} else if(name.startsWith("class-") && name.endsWith(".bin")){
+				String[] parts = name.substring(6, name.length() - 4).split("-");
+				try {
+					int c = Integer.parseInt(parts[0]);
+					stale = c >= generations.length - 1 || !name.equals(classFile(directory, c, generations[c + 1]).getName());
+				} catch (NumberFormatException e) {
+					stale = false;
+				}
+			}
+			if(stale) file.delete();
+		}
+	}
+
+	protected static void writeClass(DataOutputStream out, CSE cse, int c) throws IOException {
+		writeHeader(out, cse);
+		out.writeInt(cse.positiveExamplesSeen[c]);
+		out.writeInt(cse.negativeExamplesSeen[c]);
+		out.writeLong(cse.referenceSizes[c]);
+		out.writeInt(cse.classGenerations[c]);
+		out.writeInt(cse.firstTests[c]);
+		cse.classWindows.get(c).writeTo(out);
+
+		ArrayList<UpdateDoublesSketch> sketches = cse.classQuantileSketches.get(c);
+		out.writeInt(sketches.size());
+		for(UpdateDoublesSketch sketch:sketches){
+			writeBytes(out, sketch.toByteArray(false));
+		}
+
+		long[] counts = cse.classNominalCounts[c];
+		out.writeInt(counts == null ? -1 : counts.length);
+		if(counts != null){
+			for(long count:counts) out.writeLong(count);
+		}
+		
+		CSEReferenceEpochs epochs = cse.classReferenceEpochs.get(c);
+		out.writeBoolean(epochs != null);
+		if(epochs != null){
+			epochs.writeTo(out);
+		}
+
+		Classifier classifier = cse.classClassifiers.get(c);
+		writeBytes(out, classifier == null ? new byte[0] : serialise(classifier));
+	}
+
+	protected static void readClass(ByteBuffer in, CSE cse, int c) throws IOException {
+		readHeader(in, cse);
+		cse.positiveExamplesSeen[c] = in.getInt();
+		cse.negativeExamplesSeen[c] = in.getInt();
+		cse.referenceSizes[c] = in.getLong();
+		cse.classGenerations[c] = in.getInt();
+		cse.firstTests[c] = in.getInt();
+		cse.classWindows.get(c).readFrom(in);
+
+		ArrayList<UpdateDoublesSketch> sketches = cse.classQuantileSketches.get(c);
+		int numSketches = in.getInt();
+		if(numSketches != sketches.size()) throw new IOException("Checkpoint of class " + c + " has " + numSketches + " sketches, expected " + sketches.size());
+		for(int j = 0; j < numSketches; j++){
+			sketches.set(j, cse.loadSketch(c, j, readBytes(in)));
+			cse.classReferenceCDFs.get(c).get(j).invalidate();
+		}
+
+		int numCounts = in.getInt();
+		if(numCounts >= 0){
+			in.asLongBuffer().get(cse.classNominalCounts[c], 0, numCounts);
+			in.position(in.position() + 8 * numCounts);
+		}
+		
+		boolean bounded = in.get() != 0;
+		if(bounded != (cse.classReferenceEpochs.get(c) != null)){
+			throw new IOException("Checkpoint of class " + c + " was written with a different referenceEpochs setting");
+		}
+		if(bounded){
+			cse.classReferenceEpochs.get(c).readFrom(in);
+		}
+
+		byte[] classifier = readBytes(in);
+		if(classifier.length > 0){
+			cse.classClassifiers.set(c, (Classifier) deserialise(classifier));
+		}
+	}
+
+	protected static void writeHeader(DataOutputStream out, CSE cse) throws IOException {
+		out.writeLong(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(cse.numClasses);
+		out.writeInt(cse.ih.numAttributes());
+		out.writeInt(cse.windowSize);
+	}
+
+	protected static void readHeader(ByteBuffer in, CSE cse) throws IOException {
+		if(in.getLong() != MAGIC || in.getInt() != VERSION){
+			throw new IOException("Not a CSE checkpoint, or written by an incompatible version");
+		}
+		if(in.getInt() != cse.numClasses | in.getInt() != cse.ih.numAttributes() | in.getInt() != cse.windowSize){
+			throw new IOException("Checkpoint was written for a different header or window size");
+		}
+	}
+
+	protected interface Writer {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	//Writes file under a temporary name, syncs it to disk and renames it into place
+	protected static void writeAtomically(File file, Writer writer) throws IOException {
+		File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		try (FileOutputStream fileOut = new FileOutputStream(temp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+			writer.write(out);
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	protected static ByteBuffer map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.load();
+			return buffer;
+		}
+	}
+
+	protected static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	protected static byte[] readBytes(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return bytes;
+	}
+
+	protected static byte[] serialise(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(object);
+		}
+		return bytes.toByteArray();
+	}
+
+	protected static Object deserialise(byte[] bytes) throws IOException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package moa.classifiers.meta;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Window of recent instances for one class, held as a preallocated ring buffer with one primitive column per
+// attribute. Push, eviction and random access are O(1). Index 0 is the newest instance, size() - 1 the oldest.
+// Attributes passed as sortedAttributes are also kept in sorted order (missing values excluded) so the exact KS
+// distance to a reference CDF can be found at any time without rebuilding a sketch of the window. Levels of
+// countedAttributes are tallied in one flat table, attribute j occupying [countOffsets[j], countOffsets[j + 1]).
+public class CSEClassWindow implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	protected final int capacity;
+	protected final double[][] columns;
+	protected final double[] weights;
+	protected final int[] sortedAttributes;
+	protected final double[][] sortedColumns;
+	protected final int[] sortedSizes;
+	protected final double[] sums;
+	protected final double[] sumSquares;
+	protected final int[] countedAttributes;
+	protected final int[] countOffsets;
+	protected final long[] counts;
+	protected int head = -1;
+	protected int size = 0;
+
+	public CSEClassWindow(int numAttributes, int capacity, int[] sortedAttributes, int[] countedAttributes,
+			int[] countOffsets) {
+		this(numAttributes, numAttributes > 0 ? capacity : 0, capacity, capacity, sortedAttributes, countedAttributes,
+				countOffsets);
+	}
+
+	//Window with numColumns columns and room for numWeights weights and sortedCapacity values in each sorted column
+	protected CSEClassWindow(int numColumns, int numWeights, int sortedCapacity, int capacity, int[] sortedAttributes,
+			int[] countedAttributes, int[] countOffsets) {
+		this.capacity = capacity;
+		this.columns = new double[numColumns][capacity];
+		this.weights = new double[numWeights];
+		this.sortedAttributes = sortedAttributes;
+		this.sortedColumns = new double[sortedAttributes.length][sortedCapacity];
+		this.sortedSizes = new int[sortedAttributes.length];
+		this.sums = new double[sortedAttributes.length];
+		this.sumSquares = new double[sortedAttributes.length];
+		this.countedAttributes = countedAttributes;
+		this.countOffsets = countOffsets;
+		this.counts = new long[countOffsets[countedAttributes.length]];
+	}
+
+	//Copy of the sorted columns and level counts only, enough to run a drift test while this window moves on.
+	//The instance columns are not copied, so slots of the snapshot cannot be read
+	public CSEClassWindow snapshot() {
+		CSEClassWindow copy = new CSEClassWindow(0, capacity, sortedAttributes, countedAttributes, countOffsets);
+		for(int j = 0; j < sortedAttributes.length; j++){
+			System.arraycopy(sortedColumns[j], 0, copy.sortedColumns[j], 0, sortedSizes[j]);
+		}
+		System.arraycopy(sortedSizes, 0, copy.sortedSizes, 0, sortedSizes.length);
+		System.arraycopy(sums, 0, copy.sums, 0, sums.length);
+		System.arraycopy(sumSquares, 0, copy.sumSquares, 0, sumSquares.length);
+		System.arraycopy(counts, 0, copy.counts, 0, counts.length);
+		copy.size = size;
+		copy.head = head;
+		return copy;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public boolean isFull() {
+		return size == capacity;
+	}
+
+	//Slot in the columns holding the instance index positions from the newest
+	public int slot(int index) {
+		int slot = head - index;
+		return slot < 0 ? slot + capacity : slot;
+	}
+
+	public int oldestSlot() {
+		return slot(size - 1);
+	}
+
+	//Adds inst as the newest instance, overwriting the oldest when the window is full
+	public void push(Instance inst) {
+		if(size == capacity) removeFromSummaries(oldestSlot());
+		head = head + 1 == capacity ? 0 : head + 1;
+		for(int a = 0; a < columns.length; a++){
+			columns[a][head] = inst.value(a);
+		}
+		weights[head] = inst.weight();
+		if(size < capacity) size++;
+		addToSummaries(head);
+	}
+
+	protected void addToSummaries(int slot) {
+		for(int j = 0; j < sortedAttributes.length; j++){
+			double v = columns[sortedAttributes[j]][slot];
+			if(Double.isNaN(v)) continue;
+			double[] sorted = sortedColumns[j];
+			int pos = Arrays.binarySearch(sorted, 0, sortedSizes[j], v);
+			if(pos < 0) pos = -pos - 1;
+			System.arraycopy(sorted, pos, sorted, pos + 1, sortedSizes[j] - pos);
+			sorted[pos] = v;
+			sortedSizes[j]++;
+			sums[j] += v;
+			sumSquares[j] += v * v;
+		}
+		for(int j = 0; j < countedAttributes.length; j++){
+			counts[countOffsets[j] + (int)columns[countedAttributes[j]][slot]]++;
+		}
+	}
+
+	public void removeOldest() {
+		removeFromSummaries(oldestSlot());
+		size--;
+	}
+
+	public void clear() {
+		size = 0;
+		Arrays.fill(sortedSizes, 0);
+		Arrays.fill(sums, 0.0);
+		Arrays.fill(sumSquares, 0.0);
+		Arrays.fill(counts, 0);
+	}
+
+	protected void removeFromSummaries(int slot) {
+		for(int j = 0; j < countedAttributes.length; j++){
+			counts[countOffsets[j] + (int)columns[countedAttributes[j]][slot]]--;
+		}
+		for(int j = 0; j < sortedAttributes.length; j++){
+			double v = columns[sortedAttributes[j]][slot];
+			if(Double.isNaN(v)) continue;
+			double[] sorted = sortedColumns[j];
+			int pos = Arrays.binarySearch(sorted, 0, sortedSizes[j], v);
+			System.arraycopy(sorted, pos + 1, sorted, pos, sortedSizes[j] - pos - 1);
+			sortedSizes[j]--;
+			sums[j] -= v;
+			sumSquares[j] -= v * v;
+		}
+	}
+
+	//Mean and variance of sortedAttributes[sortedIndex] over the window, from running sums
+	public double mean(int sortedIndex) {
+		return sortedSizes[sortedIndex] == 0 ? 0.0 : sums[sortedIndex] / sortedSizes[sortedIndex];
+	}
+
+	public double variance(int sortedIndex) {
+		int n = sortedSizes[sortedIndex];
+		if(n < 2) return 0.0;
+		double mean = sums[sortedIndex] / n;
+		return Math.max(0.0, (sumSquares[sortedIndex] - n * mean * mean) / (n - 1));
+	}
+
+	//Table of level counts over the window for the counted attributes
+	public long[] nominalCounts() {
+		return counts;
+	}
+
+	//Approximate heap footprint of the window's arrays
+	public long estimatedBytes() {
+		long doubles = (long)columns.length * (columns.length > 0 ? columns[0].length : 0) + weights.length
+				+ (long)sortedColumns.length * capacity + sums.length + sumSquares.length;
+		return 8 * doubles + 8 * counts.length + 4 * sortedSizes.length;
+	}
+
+	//Exact KS distance between the empirical CDF of the window for sortedAttributes[sortedIndex] and the cached CDF
+	//of the reference. Both CDFs are step functions, so it is enough to compare them just before and at every
+	//distinct window value: in between, the window CDF is flat and the reference CDF is monotone. The two sorted
+	//arrays are walked together once.
+	public double ksDistance(int sortedIndex, CSEReferenceCDF reference) {
+		return CSETestKernels.ksDistance(sortedColumns[sortedIndex], sortedSizes[sortedIndex], reference.values,
+				reference.cumulative, reference.length);
+	}
+
+	//Upper bound on ksDistance from points entries of the reference CDF, in O(points log size)
+	public double ksUpperBound(int sortedIndex, CSEReferenceCDF reference, int points) {
+		return CSETestKernels.ksUpperBound(sortedColumns[sortedIndex], sortedSizes[sortedIndex], 0, reference.values,
+				reference.cumulative, reference.length, points);
+	}
+
+	public double value(int slot, int attribute) {
+		return columns[attribute][slot];
+	}
+
+	public double weight(int slot) {
+		return weights[slot];
+	}
+
+	//Overwrites the values and weight of target with the instance held in slot, without allocating. The target
+	//must be as unload left it after any earlier load from a window of the same kind
+	public void load(int slot, Instance target) {
+		for(int a = 0; a < columns.length; a++){
+			target.setValue(a, columns[a][slot]);
+		}
+		target.setWeight(weights[slot]);
+	}
+
+	//Undoes load of slot into target before the slot changes or another slot is loaded; load overwrites every value
+	//here, so there is nothing to undo
+	public void unload(int slot, Instance target) {
+	}
+
+	//Writes the instances held, oldest first, as one run of doubles per column followed by the weights
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(size);
+		for(int a = 0; a < columns.length; a++){
+			for(int i = size - 1; i >= 0; i--){
+				out.writeDouble(columns[a][slot(i)]);
+			}
+		}
+		for(int i = size - 1; i >= 0; i--){
+			out.writeDouble(weights[slot(i)]);
+		}
+	}
+
+	//Replaces the contents with instances written by writeTo, copying each column in bulk and rebuilding the sorted
+	//columns, sums and counts
+	public void readFrom(ByteBuffer in) {
+		clear();
+		int n = in.getInt();
+		DoubleBuffer doubles = in.asDoubleBuffer();
+		for(int a = 0; a < columns.length; a++){
+			doubles.get(columns[a], 0, n);
+		}
+		doubles.get(weights, 0, n);
+		in.position(in.position() + 8 * n * (columns.length + 1));
+		head = n - 1;
+		size = n;
+		for(int slot = 0; slot < n; slot++){
+			addToSummaries(slot);
+		}
+	}
+
+	public Instance toInstance(int slot, InstancesHeader header) {
+		double[] values = new double[columns.length];
+		for(int a = 0; a < columns.length; a++){
+			values[a] = columns[a][slot];
+		}
+		Instance inst = new DenseInstance(weights[slot], values);
+		inst.setDataset(header);
+		return inst;
+	}
+}
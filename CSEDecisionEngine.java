@@ -0,0 +1,137 @@
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Benjamini-Yekutieli decision over KS and chi-square tests made by comparing test statistics with critical values
+// instead of computing p-values. With m tests and q the m-th harmonic number, BY rejects at rank k when the k-th
+// smallest p-value is below alpha * k / (q * m). Each test is reduced to the smallest rank whose level its statistic
+// exceeds, and there is a drift when, for some k, at least k tests reach rank k or lower. Critical values are found
+// the first time a number of tests (and, for chi-square, degrees of freedom) is seen and then only read, so tests
+// running on several threads share them without locking. A rank only falls as the statistic rises, so a test whose
+// statistic is bounded above by one with no rank has no rank either; CSE's KS pre-screen relies on this.
+public class CSEDecisionEngine implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	//Rank of a test that does not reach even the loosest level
+	public static final int NO_RANK = Integer.MAX_VALUE;
+
+	protected final double alpha;
+	protected final int maxDf;
+	//Critical scaled KS distance t = d sqrt(n m / (n + m)) at ranks 1..m, indexed by m
+	protected final AtomicReferenceArray<double[]> ksCritical;
+	//Critical chi-square statistic at ranks 1..m, indexed by m * (maxDf + 1) + df
+	protected final AtomicReferenceArray<double[]> chiSquareCritical;
+
+	public CSEDecisionEngine(double alpha, int maxTests, int maxDf) {
+		this.alpha = alpha;
+		this.maxDf = maxDf;
+		this.ksCritical = new AtomicReferenceArray<double[]>(maxTests + 1);
+		this.chiSquareCritical = new AtomicReferenceArray<double[]>((maxTests + 1) * (maxDf + 1));
+	}
+
+	//Level a p-value must fall below for BY to reject at rank k of m tests
+	public double level(int k, int m) {
+		double q = 0.0;
+		for(int i = 1; i <= m; i++) q += 1.0 / i;
+		return alpha * k / (q * m);
+	}
+
+	//Smallest rank at which a KS distance d between samples of n and w values is significant among m tests
+	public int ksRank(double d, int n, int w, int m) {
+		return rank(d * Math.sqrt((double)n * w / ((double)n + w)), ksCritical(m));
+	}
+
+	//Smallest rank at which a chi-square statistic with df degrees of freedom is significant among m tests
+	public int chiSquareRank(double statistic, int df, int m) {
+		return rank(statistic, chiSquareCritical(df, m));
+	}
+
+	//Critical values fall as the rank rises, so the smallest rank whose critical value the statistic exceeds is
+	//found by bisection
+	protected static int rank(double statistic, double[] critical) {
+		int m = critical.length;
+		if(m == 0 || !(statistic > critical[m - 1])) return NO_RANK;
+		int low = 0;
+		int high = m - 1;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(statistic > critical[mid]) high = mid; else low = mid + 1;
+		}
+		return low + 1;
+	}
+
+	//Whether BY rejects, given the rank of each of count tests; ranks is left unchanged
+	public static boolean reject(int[] ranks, int count) {
+		//If some k has at least k ranks at or below it, so does the largest of those ranks, so only the ranks
+		//themselves need checking
+		for(int i = 0; i < count; i++){
+			int k = ranks[i];
+			if(k == NO_RANK) continue;
+			int atOrBelow = 0;
+			for(int j = 0; j < count; j++){
+				if(ranks[j] <= k) atOrBelow++;
+			}
+			if(atOrBelow >= k) return true;
+		}
+		return false;
+	}
+
+	protected double[] ksCritical(int m) {
+		double[] critical = ksCritical.get(m);
+		if(critical == null){
+			critical = new double[m];
+			for(int k = 1; k <= m; k++){
+				critical[k - 1] = kolmogorovInverse(level(k, m));
+			}
+			ksCritical.compareAndSet(m, null, critical);
+		}
+		return critical;
+	}
+
+	protected double[] chiSquareCritical(int df, int m) {
+		int index = m * (maxDf + 1) + df;
+		double[] critical = chiSquareCritical.get(index);
+		if(critical == null){
+			critical = new double[m];
+			ChiSquaredDistribution distribution = new ChiSquaredDistribution(null, df);
+			for(int k = 1; k <= m; k++){
+				critical[k - 1] = distribution.inverseCumulativeProbability(1 - level(k, m));
+			}
+			chiSquareCritical.compareAndSet(index, null, critical);
+		}
+		return critical;
+	}
+
+	//Scaled distance t at which the asymptotic KS p-value used by KolmogorovSmirnovTest.approximateP equals p
+	protected static double kolmogorovInverse(double p) {
+		double low = 0.0;
+		double high = 10.0;
+		for(int i = 0; i < 100; i++){
+			double mid = 0.5 * (low + high);
+			if(kolmogorovP(mid) > p) low = mid; else high = mid;
+		}
+		return high;
+	}
+
+	//2 * sum over k >= 1 of (-1)^(k-1) exp(-2 k^2 t^2), summed as approximateP sums it
+	protected static double kolmogorovP(double t) {
+		if(t == 0.0) return 1.0;
+		double x = -2 * t * t;
+		double sum = 0.0;
+		double sign = 1.0;
+		for(long k = 1; k < 100000; k++){
+			double term = Math.exp(x * k * k);
+			sum += sign * term;
+			if(term <= 1e-20) break;
+			sign = -sign;
+		}
+		return 2 * sum;
+	}
+}
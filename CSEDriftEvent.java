@@ -0,0 +1,77 @@
+package moa.classifiers.meta;
+
+import java.util.Arrays;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// One class drift detected by CSE. Events are preallocated slots of CSEDriftEvents and are reused once a listener
+// returns, so listeners must copy anything they keep.
+public class CSEDriftEvent {
+
+	protected long instance;
+	protected int classIndex;
+	protected final double[] pValues;
+	protected final double[] sortedPValues;
+	protected double adjustedP;
+	protected long retrainNanos;
+
+	public CSEDriftEvent(int numTests) {
+		this.pValues = new double[numTests];
+		this.sortedPValues = new double[numTests];
+	}
+
+	//Number of training instances seen when the drift was acted on
+	public long getInstance() {
+		return instance;
+	}
+
+	public int getClassIndex() {
+		return classIndex;
+	}
+
+	//P-value of each attribute's test, numeric attributes first and then nominal attributes, in header order.
+	//NaN for nominal attributes whose counts were too sparse to test, and for attributes outside the subset tested
+	//at this test point when testsPerCycle is set
+	public double[] getPValues() {
+		return pValues;
+	}
+
+	//Smallest Benjamini-Yekutieli adjusted p-value; the drift was reported because it fell below pValueAlpha
+	public double getAdjustedP() {
+		return adjustedP;
+	}
+
+	//Time taken to reset the class and retrain or, with background retraining, to collect the retraining examples
+	public long getRetrainNanos() {
+		return retrainNanos;
+	}
+
+	protected void set(long instance, int classIndex, double[] pValues, long retrainNanos) {
+		this.instance = instance;
+		this.classIndex = classIndex;
+		this.retrainNanos = retrainNanos;
+		System.arraycopy(pValues, 0, this.pValues, 0, this.pValues.length);
+
+		//Benjamini-Yekutieli adjustment: the i-th smallest of m p-values is scaled by q * m / i
+		int m = 0;
+		for(double p:pValues){
+			if(!Double.isNaN(p)) sortedPValues[m++] = p;
+		}
+		Arrays.sort(sortedPValues, 0, m);
+		double q = 0.0;
+		for(int i = 1; i <= m; i++) q += 1.0 / i;
+		adjustedP = Double.POSITIVE_INFINITY;
+		for(int i = 1; i <= m; i++){
+			adjustedP = Math.min(adjustedP, q * m / i * sortedPValues[i - 1]);
+		}
+	}
+
+	protected void copyFrom(CSEDriftEvent other) {
+		this.instance = other.instance;
+		this.classIndex = other.classIndex;
+		this.adjustedP = other.adjustedP;
+		this.retrainNanos = other.retrainNanos;
+		System.arraycopy(other.pValues, 0, pValues, 0, pValues.length);
+	}
+}
@@ -0,0 +1,81 @@
+package moa.classifiers.meta;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Ring buffer of preallocated drift events passed from the CSE training thread to a single draining thread. The
+// training thread fills the next free slot in place and never waits: if the ring is full the event is dropped and
+// counted instead. Events are drained by a daemon dispatcher thread once listeners are attached, or by calling
+// drain directly.
+public class CSEDriftEvents {
+
+	protected final CSEDriftEvent[] slots;
+	protected final CSEDriftEvent delivered;
+	protected final AtomicLong published = new AtomicLong();
+	protected final AtomicLong consumed = new AtomicLong();
+	protected final AtomicLong dropped = new AtomicLong();
+	protected volatile Thread dispatcher;
+
+	public CSEDriftEvents(int capacity, int numTests) {
+		this.slots = new CSEDriftEvent[capacity];
+		for(int i = 0; i < capacity; i++){
+			slots[i] = new CSEDriftEvent(numTests);
+		}
+		this.delivered = new CSEDriftEvent(numTests);
+	}
+
+	//Called by the training thread only
+	public void publish(long instance, int classIndex, double[] pValues, long retrainNanos) {
+		long sequence = published.get();
+		if(sequence - consumed.get() >= slots.length){
+			dropped.incrementAndGet();
+			return;
+		}
+		slots[(int)(sequence % slots.length)].set(instance, classIndex, pValues, retrainNanos);
+		published.lazySet(sequence + 1);
+		Thread waiting = dispatcher;
+		if(waiting != null) LockSupport.unpark(waiting);
+	}
+
+	//Passes every published event to the listeners, returning how many there were. Only one thread may drain
+	public int drain(List<CSEDriftListener> listeners) {
+		long sequence = consumed.get();
+		long available = published.get();
+		for(long s = sequence; s < available; s++){
+			delivered.copyFrom(slots[(int)(s % slots.length)]);
+			consumed.lazySet(s + 1);
+			for(CSEDriftListener listener:listeners){
+				listener.driftDetected(delivered);
+			}
+		}
+		return (int)(available - sequence);
+	}
+
+	//Starts the daemon thread delivering events to listeners, which may be added to while it runs
+	public synchronized void startDispatcher(List<CSEDriftListener> listeners) {
+		if(dispatcher != null) return;
+		Thread thread = new Thread(() -> {
+			while(dispatcher == Thread.currentThread()){
+				if(drain(listeners) == 0) LockSupport.parkNanos(this, 10000000L);
+			}
+		}, "CSE-drift-events");
+		thread.setDaemon(true);
+		dispatcher = thread;
+		thread.start();
+	}
+
+	//Stops the dispatcher. Events it has not yet delivered stay in the ring for the next drain
+	public synchronized void stopDispatcher() {
+		Thread thread = dispatcher;
+		dispatcher = null;
+		if(thread != null) LockSupport.unpark(thread);
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+}
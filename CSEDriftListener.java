@@ -0,0 +1,10 @@
+package moa.classifiers.meta;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Receives the class drifts detected by a CSE, in detection order, on the thread draining its CSEDriftEvents.
+public interface CSEDriftListener {
+
+	void driftDetected(CSEDriftEvent event);
+}
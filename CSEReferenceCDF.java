@@ -0,0 +1,129 @@
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+
+import com.yahoo.sketches.quantiles.DoublesSketch;
+import com.yahoo.sketches.quantiles.DoublesSketchIterator;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Cached sorted view of the CDF of a reference quantile sketch: the distinct retained values in ascending order
+// with the fraction of the stream at or below each. Adding m items to a sketch of n moves its CDF by at most
+// m/(n+m), so the view only needs rebuilding once that bound exceeds the tolerance allowed for the KS distance.
+public class CSEReferenceCDF implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	protected double[] values = new double[0];
+	protected double[] cumulative = new double[0];
+	protected int length = 0;
+	protected long n = -1;
+
+	public boolean isStale(long sketchN, double tolerance) {
+		return maxShift(sketchN) > tolerance;
+	}
+
+	//Most the CDF of the sketch, now of sketchN items, can have moved from this view, or infinity if the view was
+	//not taken from an earlier state of it
+	public double maxShift(long sketchN) {
+		if(n < 0 || sketchN < n) return Double.POSITIVE_INFINITY;
+		return sketchN == n ? 0.0 : (double)(sketchN - n) / sketchN;
+	}
+
+	public void invalidate() {
+		n = -1;
+	}
+
+	public void refresh(DoublesSketch sketch) {
+		refresh(sketch, 0);
+	}
+
+	//Refreshes from a sketch of the non-zero values of a sparse attribute that was also zero zeros times
+	public void refresh(DoublesSketch sketch, long zeros) {
+		int retained = sketch.getRetainedItems();
+		double[] itemValues = new double[retained + 1];
+		long[] itemWeights = new long[retained + 1];
+		int count = 0;
+		if(zeros > 0){
+			itemWeights[count++] = zeros;
+		}
+		DoublesSketchIterator it = sketch.iterator();
+		while(it.next()){
+			itemValues[count] = it.getValue();
+			itemWeights[count] = it.getWeight();
+			count++;
+		}
+		sortByValue(itemValues, itemWeights, count);
+
+		if(values.length < count){
+			values = new double[count];
+			cumulative = new double[count];
+		}
+		long total = 0;
+		for(int i = 0; i < count; i++) total += itemWeights[i];
+		long running = 0;
+		length = 0;
+		for(int i = 0; i < count; i++){
+			running += itemWeights[i];
+			if(length > 0 && values[length - 1] == itemValues[i]){
+				cumulative[length - 1] = (double)running / total;
+			} else {
+				values[length] = itemValues[i];
+				cumulative[length] = (double)running / total;
+				length++;
+			}
+		}
+		n = sketch.getN() + zeros;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	//Approximate heap footprint of the cached arrays
+	public long estimatedBytes() {
+		return 8L * (values.length + cumulative.length);
+	}
+
+	public double value(int i) {
+		return values[i];
+	}
+
+	//Fraction of the reference at or below value(i)
+	public double cumulative(int i) {
+		return cumulative[i];
+	}
+
+	//Merge sort of values carrying their weights along, avoiding boxed comparators
+	protected static void sortByValue(double[] values, long[] weights, int count) {
+		double[] valueBuffer = new double[count];
+		long[] weightBuffer = new long[count];
+		for(int width = 1; width < count; width *= 2){
+			for(int lo = 0; lo < count - width; lo += 2 * width){
+				int mid = lo + width;
+				int hi = Math.min(lo + 2 * width, count);
+				int i = lo, j = mid, k = lo;
+				while(i < mid && j < hi){
+					if(values[j] < values[i]){
+						valueBuffer[k] = values[j];
+						weightBuffer[k++] = weights[j++];
+					} else {
+						valueBuffer[k] = values[i];
+						weightBuffer[k++] = weights[i++];
+					}
+				}
+				while(i < mid){
+					valueBuffer[k] = values[i];
+					weightBuffer[k++] = weights[i++];
+				}
+				while(j < hi){
+					valueBuffer[k] = values[j];
+					weightBuffer[k++] = weights[j++];
+				}
+				System.arraycopy(valueBuffer, lo, values, lo, hi - lo);
+				System.arraycopy(weightBuffer, lo, weights, lo, hi - lo);
+			}
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package moa.classifiers.meta;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.sketches.quantiles.DoublesUnion;
+import com.yahoo.sketches.quantiles.UpdateDoublesSketch;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Bounded reference for one class: the last numEpochs epochs of epochSize instances each, held as serialised
+// compact sketches and tables of counts in a ring. The class's update sketches and counts take the current epoch;
+// when it fills, its sketches are compacted into the ring, overwriting the oldest epoch, whose counts are taken
+// back out of the class's table. The sketches tested against are the ring merged once per epoch, merged again with
+// the current epoch at each test, so reference memory and merge cost depend only on k, numEpochs and epochSize.
+// With a sketch store the ring's sketches, the merges and the union building them are kept in the store's regions
+// for the class instead of on the heap.
+public class CSEReferenceEpochs implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	protected final int numEpochs;
+	protected final int epochSize;
+	protected final int k;
+	protected final byte[][][] epochSketches;
+	//Bytes of each epoch sketch held in the store
+	protected final int[][] epochSketchBytes;
+	protected final long[][] epochCounts;
+	protected final long[] currentCounts;
+	protected int currentSize;
+	protected int newest = -1;
+	protected int filled;
+	protected transient UpdateDoublesSketch[] ringMerged;
+	protected transient CSESketchStore store;
+	protected int storeClass;
+
+	public CSEReferenceEpochs(int numEpochs, int epochSize, int k, int numSketches, int numCounts) {
+		this.numEpochs = numEpochs;
+		this.epochSize = epochSize;
+		this.k = k;
+		this.epochSketches = new byte[numEpochs][numSketches][];
+		this.epochSketchBytes = new int[numEpochs][numSketches];
+		this.epochCounts = new long[numEpochs][numCounts];
+		this.currentCounts = new long[numCounts];
+	}
+
+	//Keeps the ring in store's regions for class c from now on. Must be called while the ring is empty
+	public void storeIn(CSESketchStore store, int c) {
+		this.store = store;
+		this.storeClass = c;
+	}
+
+	//Serialised compact sketch of attribute j in epoch e
+	protected Memory epochSketch(int e, int j) {
+		if(store != null){
+			return store.epochRegion(storeClass, e, j).region(0, epochSketchBytes[e][j]);
+		}
+		return Memory.wrap(epochSketches[e][j]);
+	}
+
+	protected DoublesUnion newUnion() {
+		return store != null ? store.newUnion() : DoublesUnion.builder().setMaxK(k).build();
+	}
+
+	//Counts level index of the current epoch, alongside the class's table
+	public void count(int index) {
+		currentCounts[index]++;
+	}
+
+	//Closes the current epoch if it is full, returning how many instances the epoch leaving the ring held. The
+	//class's sketches are reset and its counts and size must be reduced by the returned epoch
+	public int added(List<UpdateDoublesSketch> sketches, long[] counts) {
+		if(++currentSize < epochSize) return 0;
+		newest = (newest + 1) % numEpochs;
+		int evicted = 0;
+		if(filled == numEpochs){
+			long[] oldCounts = epochCounts[newest];
+			for(int i = 0; i < counts.length; i++){
+				counts[i] -= oldCounts[i];
+			}
+			evicted = epochSize;
+		} else {
+			filled++;
+		}
+		for(int j = 0; j < sketches.size(); j++){
+			if(store != null){
+				epochSketchBytes[newest][j] = sketches.get(j).compact(store.epochRegion(storeClass, newest, j)).getStorageBytes();
+			} else {
+				epochSketches[newest][j] = sketches.get(j).compact().toByteArray();
+			}
+			sketches.get(j).reset();
+		}
+		System.arraycopy(currentCounts, 0, epochCounts[newest], 0, currentCounts.length);
+		Arrays.fill(currentCounts, 0);
+		currentSize = 0;
+		ringMerged = null;
+		return evicted;
+	}
+
+	//Instances in the current epoch, 0 just after an epoch has closed
+	public int currentSize() {
+		return currentSize;
+	}
+
+	//Reference sketch of each attribute: the ring merged with the current epoch's sketches
+	public ArrayList<UpdateDoublesSketch> merged(List<UpdateDoublesSketch> sketches) {
+		ArrayList<UpdateDoublesSketch> merged = new ArrayList<UpdateDoublesSketch>(sketches.size());
+		if(filled == 0){
+			merged.addAll(sketches);
+			return merged;
+		}
+		if(ringMerged == null){
+			ringMerged = new UpdateDoublesSketch[sketches.size()];
+			for(int j = 0; j < sketches.size(); j++){
+				DoublesUnion union = newUnion();
+				for(int e = 0; e < filled; e++){
+					union.update(epochSketch(e, j));
+				}
+				ringMerged[j] = store != null ? union.getResult(store.ringRegion(storeClass, j)) : union.getResult();
+			}
+		}
+		//With a store each merge overwrites the last one's region, so only the latest list returned may be read
+		for(int j = 0; j < sketches.size(); j++){
+			if(sketches.get(j).isEmpty()){
+				merged.add(ringMerged[j]);
+				continue;
+			}
+			DoublesUnion union = newUnion();
+			union.update(ringMerged[j]);
+			union.update(sketches.get(j));
+			merged.add(store != null ? union.getResult(store.mergedRegion(storeClass, j)) : union.getResult());
+		}
+		return merged;
+	}
+
+	public void clear() {
+		for(int e = 0; e < numEpochs; e++){
+			Arrays.fill(epochSketches[e], null);
+			Arrays.fill(epochSketchBytes[e], 0);
+			Arrays.fill(epochCounts[e], 0);
+		}
+		Arrays.fill(currentCounts, 0);
+		currentSize = 0;
+		newest = -1;
+		filled = 0;
+		ringMerged = null;
+	}
+
+	public long estimatedBytes() {
+		long bytes = 8L * (epochCounts.length * (long)currentCounts.length + currentCounts.length);
+		for(int e = 0; e < filled; e++){
+			for(int j = 0; j < epochSketches[e].length; j++){
+				bytes += store != null ? epochSketchBytes[e][j] : epochSketches[e][j].length;
+			}
+		}
+		return bytes;
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(currentSize);
+		out.writeInt(newest);
+		out.writeInt(filled);
+		for(long count:currentCounts) out.writeLong(count);
+		for(int e = 0; e < filled; e++){
+			for(long count:epochCounts[e]) out.writeLong(count);
+			for(int j = 0; j < epochSketches[e].length; j++){
+				byte[] sketch = epochSketches[e][j];
+				if(store != null){
+					sketch = new byte[epochSketchBytes[e][j]];
+					epochSketch(e, j).getByteArray(0, sketch, 0, sketch.length);
+				}
+				out.writeInt(sketch.length);
+				out.write(sketch);
+			}
+		}
+	}
+
+	public void readFrom(ByteBuffer in) {
+		clear();
+		currentSize = in.getInt();
+		newest = in.getInt();
+		filled = in.getInt();
+		in.asLongBuffer().get(currentCounts);
+		in.position(in.position() + 8 * currentCounts.length);
+		for(int e = 0; e < filled; e++){
+			in.asLongBuffer().get(epochCounts[e]);
+			in.position(in.position() + 8 * epochCounts[e].length);
+			for(int j = 0; j < epochSketches[e].length; j++){
+				byte[] sketch = new byte[in.getInt()];
+				in.get(sketch);
+				if(store != null){
+					store.epochRegion(storeClass, e, j).putByteArray(0, sketch, 0, sketch.length);
+					epochSketchBytes[e][j] = sketch.length;
+				} else {
+					epochSketches[e][j] = sketch;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package moa.classifiers.meta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Worker side of CSEShardTransport.Remote: serves one CSE shard per connection, training on TRAIN messages,
+// draining windows on DRAIN_WINDOW messages and answering VOTES and TRAIN_REPORTING_DRIFTS messages in arrival order.
+// Usage: CSEShardServer <port>
+public class CSEShardServer {
+
+	public static final byte TRAIN = 1;
+	public static final byte VOTES = 2;
+	public static final byte CLOSE = 3;
+	public static final byte TRAIN_REPORTING_DRIFTS = 4;
+	public static final byte DRAIN_WINDOW = 5;
+
+	public static void main(String[] args) throws Exception {
+		try (ServerSocket server = new ServerSocket(Integer.parseInt(args[0]))) {
+			while(true){
+				Socket socket = server.accept();
+				Thread thread = new Thread(() -> serveQuietly(socket), "CSE-shard-server");
+				thread.start();
+			}
+		}
+	}
+
+	//Starts a daemon thread serving a single connection on a free loopback port, returning the port
+	public static int startLoopback() throws IOException {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread(() -> {
+			try (ServerSocket s = server) {
+				serveQuietly(s.accept());
+			} catch (IOException e) {
+				//Coordinator went away before connecting
+			}
+		}, "CSE-shard-loopback");
+		thread.setDaemon(true);
+		thread.start();
+		return server.getLocalPort();
+	}
+
+	protected static void serveQuietly(Socket socket) {
+		try {
+			serve(socket);
+		} catch (IOException | ClassNotFoundException e) {
+			//Connection lost; the coordinator sees it as a failed request
+		}
+	}
+
+	public static void serve(Socket socket) throws IOException, ClassNotFoundException {
+		try (Socket s = socket) {
+			s.setTcpNoDelay(true);
+			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(s.getInputStream()));
+			CSE shard = (CSE) in.readObject();
+			InstancesHeader header = (InstancesHeader) in.readObject();
+			int from = in.readInt();
+			int to = in.readInt();
+			ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			out.flush();
+
+			shard.prepareForUse();
+			shard.setOwnedClasses(from, to);
+			shard.setModelContext(header);
+			int numAttributes = header.numAttributes();
+			long[] reportedDrifts = new long[header.numClasses()];
+
+			while(true){
+				byte type = in.readByte();
+				if(type == CLOSE) break;
+				if(type == DRAIN_WINDOW){
+					shard.drainClassWindow(in.readInt());
+					continue;
+				}
+				double weight = in.readDouble();
+				double[] values = new double[numAttributes];
+				for(int a = 0; a < numAttributes; a++){
+					values[a] = in.readDouble();
+				}
+				Instance inst = new DenseInstance(weight, values);
+				inst.setDataset(header);
+
+				if(type == TRAIN){
+					shard.trainOnInstance(inst);
+				} else if(type == TRAIN_REPORTING_DRIFTS){
+					shard.trainOnInstance(inst);
+					int[] drifted = shard.driftsSince(reportedDrifts);
+					out.writeInt(drifted.length);
+					for(int c:drifted){
+						out.writeInt(c);
+					}
+					out.flush();
+				} else {
+					double[] votes = shard.getVotesForInstance(inst);
+					out.writeInt(votes.length);
+					for(double v:votes){
+						out.writeDouble(v);
+					}
+					out.flush();
+				}
+			}
+			shard.prepareForUse();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package moa.classifiers.meta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Link from a ShardedCSE to one shard, a CSE that owns a range of classes. Training is fire-and-forget and applied
+// in order; votes are requested from every shard before any are received, so shards score in parallel.
+public interface CSEShardTransport extends Closeable {
+
+	void train(Instance inst) throws IOException;
+
+	//Trains on inst and waits until the shard has, returning the owned classes that drifted since the last report
+	int[] trainReportingDrifts(Instance inst) throws IOException;
+
+	//Queues the draining of the shard's window of class c, after its owner reported a drift
+	void drainWindow(int c) throws IOException;
+
+	void requestVotes(Instance inst) throws IOException;
+
+	double[] receiveVotes() throws IOException;
+
+	// Shard held in this JVM and driven by its own thread. A bounded queue makes the coordinator wait rather than
+	// let training fall arbitrarily far behind; work offered after close is rejected.
+	public static class InProcess implements CSEShardTransport {
+
+		protected final CSE shard;
+		protected final ThreadPoolExecutor executor;
+		protected final long[] reportedDrifts;
+		protected Future<double[]> pendingVotes;
+
+		public InProcess(CSE shard, InstancesHeader header, int from, int to, int queueSize) {
+			this.shard = shard;
+			this.reportedDrifts = new long[header.numClasses()];
+			shard.prepareForUse();
+			shard.setOwnedClasses(from, to);
+			shard.setModelContext(header);
+			this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queueSize), runnable -> {
+						Thread thread = new Thread(runnable, "CSE-shard-" + from);
+						thread.setDaemon(true);
+						return thread;
+					}, (runnable, pool) -> {
+						if(pool.isShutdown()){
+							throw new RejectedExecutionException("CSE shard " + from + " is closed");
+						}
+						try {
+							pool.getQueue().put(runnable);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new RejectedExecutionException(e);
+						}
+					});
+		}
+
+		//The instance may be shared by all shards, which only read it while training
+		@Override
+		public void train(Instance inst) {
+			executor.execute(() -> shard.trainOnInstance(inst));
+		}
+
+		@Override
+		public int[] trainReportingDrifts(Instance inst) throws IOException {
+			return await(executor.submit(() -> {
+				shard.trainOnInstance(inst);
+				return shard.driftsSince(reportedDrifts);
+			}));
+		}
+
+		@Override
+		public void drainWindow(int c) {
+			executor.execute(() -> shard.drainClassWindow(c));
+		}
+
+		//Scoring briefly overwrites the class value, so each shard scores its own copy
+		@Override
+		public void requestVotes(Instance inst) {
+			Instance copy = inst.copy();
+			pendingVotes = executor.submit(() -> shard.getVotesForInstance(copy));
+		}
+
+		@Override
+		public double[] receiveVotes() throws IOException {
+			return await(pendingVotes);
+		}
+
+		protected <T> T await(Future<T> result) throws IOException {
+			try {
+				return result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+		}
+
+		//Training still queued is finished before the shard is released, so it never runs against a reset shard
+		@Override
+		public void close() throws IOException {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			shard.prepareForUse();
+		}
+	}
+
+	// Shard served by a CSEShardServer over a socket, in a worker JVM or on a loopback port of this one. The shard
+	// configuration, header and class range are sent when connecting; instances then travel as primitive values.
+	public static class Remote implements CSEShardTransport {
+
+		protected final Socket socket;
+		protected final ObjectOutputStream out;
+		protected final ObjectInputStream in;
+		protected final int numAttributes;
+
+		public Remote(String host, int port, CSE shard, InstancesHeader header, int from, int to) throws IOException {
+			this.socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			this.numAttributes = header.numAttributes();
+			this.out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeObject(shard);
+			out.writeObject(header);
+			out.writeInt(from);
+			out.writeInt(to);
+			out.flush();
+			this.in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+		}
+
+		@Override
+		public void train(Instance inst) throws IOException {
+			send(CSEShardServer.TRAIN, inst);
+		}
+
+		@Override
+		public int[] trainReportingDrifts(Instance inst) throws IOException {
+			send(CSEShardServer.TRAIN_REPORTING_DRIFTS, inst);
+			out.flush();
+			int[] drifted = new int[in.readInt()];
+			for(int i = 0; i < drifted.length; i++){
+				drifted[i] = in.readInt();
+			}
+			return drifted;
+		}
+
+		@Override
+		public void drainWindow(int c) throws IOException {
+			out.writeByte(CSEShardServer.DRAIN_WINDOW);
+			out.writeInt(c);
+		}
+
+		@Override
+		public void requestVotes(Instance inst) throws IOException {
+			send(CSEShardServer.VOTES, inst);
+			out.flush();
+		}
+
+		@Override
+		public double[] receiveVotes() throws IOException {
+			double[] votes = new double[in.readInt()];
+			for(int i = 0; i < votes.length; i++){
+				votes[i] = in.readDouble();
+			}
+			return votes;
+		}
+
+		protected void send(byte type, Instance inst) throws IOException {
+			out.writeByte(type);
+			out.writeDouble(inst.weight());
+			for(int a = 0; a < numAttributes; a++){
+				out.writeDouble(inst.value(a));
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.writeByte(CSEShardServer.CLOSE);
+			out.flush();
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// The one-vs-rest NaiveBayes models of a CSE kept as one set of sufficient statistics: the weight of each class and,
+// per attribute, a Gaussian estimator for numeric attributes or level weights for nominal ones. The model of class c
+// has positives P_c and negatives E_c + R + N_c - Q_c, where R holds the instances trained since the last rebuild of
+// any class, E_c those trained before that but since c's last rebuild, Q_c the positives of c trained since its last
+// rebuild, N_c the negatives it retrains on, and P_c is Q_c plus the positives it retrains on. Training updates R
+// and one P_c and Q_c, so it costs the same for any number of classes; a rebuild moves R into the E_c of every other
+// class. Only Q_c is ever subtracted, from statistics that hold it, so no model loses precision to totals that dwarf
+// what it has seen since its rebuild. Gaussians are combined with Chan's formulas, subtracted statistics taking a
+// negative weight. Votes follow NaiveBayes.doNaiveBayesPrediction except that the
+// Laplace correction of a nominal attribute counts all of its levels, where NaiveBayes counts those up to the
+// highest it has seen.
+public class CSESharedNaiveBayes implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	protected static final double NORMAL_CONSTANT = Math.sqrt(2 * Math.PI);
+
+	protected final int[] numericAtts;
+	protected final int[] nominalAtts;
+	protected final int[] nominalOffsets;
+	//Attributes in index order, j for numeric attribute j and -1 - j for nominal attribute j, so votes multiply in
+	//the order NaiveBayes does
+	protected final int[] attributeOrder;
+	protected final int from;
+	protected final int to;
+	protected final Stats recent;
+	protected final Stats[] earlier;
+	protected final Stats[] positives;
+	protected final Stats[] trainedPositives;
+	protected final Stats[] retrainedNegatives;
+
+	//Statistics for classes [from, to)
+	public CSESharedNaiveBayes(int numClasses, int from, int to, int[] numericAtts, int[] nominalAtts, int[] nominalOffsets) {
+		this.numericAtts = numericAtts;
+		this.nominalAtts = nominalAtts;
+		this.nominalOffsets = nominalOffsets;
+		this.attributeOrder = new int[numericAtts.length + nominalAtts.length];
+		for(int i = 0, j = 0, k = 0; i < attributeOrder.length; i++){
+			if(k == nominalAtts.length || (j < numericAtts.length && numericAtts[j] < nominalAtts[k])){
+				attributeOrder[i] = j++;
+			} else {
+				attributeOrder[i] = -1 - k++;
+			}
+		}
+		this.from = from;
+		this.to = to;
+		this.recent = newStats();
+		this.earlier = new Stats[numClasses];
+		this.positives = new Stats[numClasses];
+		this.trainedPositives = new Stats[numClasses];
+		this.retrainedNegatives = new Stats[numClasses];
+		for(int c = from; c < to; c++){
+			earlier[c] = newStats();
+			positives[c] = newStats();
+			trainedPositives[c] = newStats();
+			retrainedNegatives[c] = newStats();
+		}
+	}
+
+	protected Stats newStats() {
+		return new Stats(numericAtts.length, nominalOffsets[nominalAtts.length], nominalAtts.length);
+	}
+
+	//Trains on inst, an instance of class c
+	public void train(Instance inst, int c) {
+		double weight = inst.weight();
+		recent.weight += weight;
+		if(positives[c] != null){
+			positives[c].weight += weight;
+			trainedPositives[c].weight += weight;
+		}
+		for(int j = 0; j < numericAtts.length; j++){
+			double v = inst.value(numericAtts[j]);
+			if(Double.isNaN(v)) continue;
+			recent.observe(j, v, weight);
+			if(positives[c] != null){
+				positives[c].observe(j, v, weight);
+				trainedPositives[c].observe(j, v, weight);
+			}
+		}
+		for(int j = 0; j < nominalAtts.length; j++){
+			double v = inst.value(nominalAtts[j]);
+			if(Double.isNaN(v)) continue;
+			recent.count(j, nominalOffsets[j] + (int)v, weight);
+			if(positives[c] != null){
+				positives[c].count(j, nominalOffsets[j] + (int)v, weight);
+				trainedPositives[c].count(j, nominalOffsets[j] + (int)v, weight);
+			}
+		}
+	}
+
+	//Starts the rebuild of class c's model, which then has no examples until retrainOn adds them. The other classes
+	//take over the instances trained since the last rebuild
+	public void resetClass(int c) {
+		for(int d = from; d < to; d++){
+			if(d != c) earlier[d].add(recent, 1.0);
+		}
+		recent.clear();
+		earlier[c].clear();
+		positives[c].clear();
+		trainedPositives[c].clear();
+		retrainedNegatives[c].clear();
+	}
+
+	//Adds the instance in a window slot to class c's rebuilt model as a positive (label 1) or negative (label 0)
+	public void retrainOn(int c, CSEClassWindow window, int slot, double label) {
+		Stats s = label == 1.0 ? positives[c] : retrainedNegatives[c];
+		double weight = window.weight(slot);
+		s.weight += weight;
+		for(int j = 0; j < numericAtts.length; j++){
+			double v = window.value(slot, numericAtts[j]);
+			if(!Double.isNaN(v)) s.observe(j, v, weight);
+		}
+		for(int j = 0; j < nominalAtts.length; j++){
+			double v = window.value(slot, nominalAtts[j]);
+			if(!Double.isNaN(v)) s.count(j, nominalOffsets[j] + (int)v, weight);
+		}
+	}
+
+	//Normalised vote of class c's model for its positive class, as CSE.positiveVote gives for a NaiveBayes
+	public double positiveVote(Instance inst, int c) {
+		Stats e = earlier[c];
+		Stats p = positives[c];
+		Stats n = retrainedNegatives[c];
+		Stats t = trainedPositives[c];
+		double positiveWeight = p.weight;
+		double negativeWeight = e.weight + recent.weight + n.weight - t.weight;
+		double sum = positiveWeight + negativeWeight;
+		if(!(positiveWeight > 0.0) || !(sum > 0.0)) return 0.0;
+		double positive = positiveWeight / sum;
+		double negative = negativeWeight / sum;
+		for(int i = 0; i < attributeOrder.length; i++){
+			int j = attributeOrder[i];
+			if(j >= 0){
+				double v = inst.value(numericAtts[j]);
+				if(Double.isNaN(v)) continue;
+				positive *= density(v, p.gaussians[3 * j], p.gaussians[3 * j + 1], p.gaussians[3 * j + 2]);
+				//Negatives are E + R + N - Q, combined a pair at a time. Rounding in the subtraction can leave a
+				//sum of squared deviations just below zero where the negatives all share one value
+				double[] a = e.gaussians;
+				double[] r = recent.gaussians;
+				double[] o = n.gaussians;
+				double[] q = t.gaussians;
+				double w1 = a[3 * j] + r[3 * j];
+				double mean1 = combinedMean(a[3 * j], a[3 * j + 1], r[3 * j], r[3 * j + 1], w1);
+				double m21 = combinedM2(a[3 * j], a[3 * j + 1], a[3 * j + 2], r[3 * j], r[3 * j + 1], r[3 * j + 2], w1);
+				double w2 = w1 + o[3 * j];
+				double mean2 = combinedMean(w1, mean1, o[3 * j], o[3 * j + 1], w2);
+				double m22 = combinedM2(w1, mean1, m21, o[3 * j], o[3 * j + 1], o[3 * j + 2], w2);
+				double w3 = w2 - q[3 * j];
+				double mean3 = combinedMean(w2, mean2, -q[3 * j], q[3 * j + 1], w3);
+				double m23 = combinedM2(w2, mean2, m22, -q[3 * j], q[3 * j + 1], -q[3 * j + 2], w3);
+				negative *= density(v, w3, mean3, Math.max(m23, 0.0));
+			} else {
+				j = -1 - j;
+				double v = inst.value(nominalAtts[j]);
+				if(Double.isNaN(v)) continue;
+				int level = nominalOffsets[j] + (int)v;
+				int numLevels = nominalOffsets[j + 1] - nominalOffsets[j];
+				positive *= levelProbability(p.levels[level], p.levelTotals[j], numLevels);
+				negative *= levelProbability(e.levels[level] + recent.levels[level] + n.levels[level] - t.levels[level],
+						e.levelTotals[j] + recent.levelTotals[j] + n.levelTotals[j] - t.levelTotals[j], numLevels);
+			}
+		}
+		return positive + negative > 0 ? positive / (positive + negative) : 0.0;
+	}
+
+	//As NominalAttributeClassObserver.probabilityOfAttributeValueGivenClass, 0 where the class has no values
+	protected static double levelProbability(double count, double total, int numLevels) {
+		return total > 0.0 ? (count + 1.0) / (total + numLevels) : 0.0;
+	}
+
+	//As GaussianEstimator.probabilityDensity
+	protected static double density(double value, double weight, double mean, double m2) {
+		if(!(weight > 0.0)) return 0.0;
+		double stdDev = Math.sqrt(weight > 1.0 ? m2 / (weight - 1.0) : 0.0);
+		if(stdDev > 0.0){
+			double diff = value - mean;
+			return (1.0 / (NORMAL_CONSTANT * stdDev)) * Math.exp(-(diff * diff / (2.0 * stdDev * stdDev)));
+		}
+		return value == mean ? 1.0 : 0.0;
+	}
+
+	protected static double combinedMean(double weightA, double meanA, double weightB, double meanB, double weight) {
+		if(weight == 0.0) return 0.0;
+		return meanA + (meanB - meanA) * weightB / weight;
+	}
+
+	protected static double combinedM2(double weightA, double meanA, double m2A, double weightB, double meanB, double m2B,
+			double weight) {
+		if(weight == 0.0) return 0.0;
+		double delta = meanB - meanA;
+		return m2A + m2B + delta * delta * weightA * weightB / weight;
+	}
+
+	public long estimatedBytes() {
+		long bytes = recent.estimatedBytes();
+		for(int c = from; c < to; c++){
+			bytes += earlier[c].estimatedBytes() + positives[c].estimatedBytes() + trainedPositives[c].estimatedBytes()
+					+ retrainedNegatives[c].estimatedBytes();
+		}
+		return bytes;
+	}
+
+	//Weight, then weight, mean and sum of squared deviations per numeric attribute, and level weights and their
+	//total per nominal attribute
+	protected static class Stats implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		protected double weight;
+		protected final double[] gaussians;
+		protected final double[] levels;
+		protected final double[] levelTotals;
+
+		protected Stats(int numNumeric, int numLevels, int numNominal) {
+			this.gaussians = new double[3 * numNumeric];
+			this.levels = new double[numLevels];
+			this.levelTotals = new double[numNominal];
+		}
+
+		//As GaussianEstimator.addObservation
+		protected void observe(int j, double value, double w) {
+			int i = 3 * j;
+			if(gaussians[i] > 0.0){
+				gaussians[i] += w;
+				double lastMean = gaussians[i + 1];
+				gaussians[i + 1] += w * (value - lastMean) / gaussians[i];
+				gaussians[i + 2] += w * (value - lastMean) * (value - gaussians[i + 1]);
+			} else {
+				gaussians[i + 1] = value;
+				gaussians[i] = w;
+			}
+		}
+
+		protected void count(int j, int level, double w) {
+			levels[level] += w;
+			levelTotals[j] += w;
+		}
+
+		//Adds sign times other to these statistics
+		protected void add(Stats other, double sign) {
+			weight += sign * other.weight;
+			for(int i = 0; i < gaussians.length; i += 3){
+				double w = gaussians[i] + sign * other.gaussians[i];
+				double mean = combinedMean(gaussians[i], gaussians[i + 1], sign * other.gaussians[i], other.gaussians[i + 1], w);
+				gaussians[i + 2] = combinedM2(gaussians[i], gaussians[i + 1], gaussians[i + 2], sign * other.gaussians[i],
+						other.gaussians[i + 1], sign * other.gaussians[i + 2], w);
+				gaussians[i + 1] = mean;
+				gaussians[i] = w;
+			}
+			for(int i = 0; i < levels.length; i++) levels[i] += sign * other.levels[i];
+			for(int i = 0; i < levelTotals.length; i++) levelTotals[i] += sign * other.levelTotals[i];
+		}
+
+		protected void clear() {
+			weight = 0.0;
+			Arrays.fill(gaussians, 0.0);
+			Arrays.fill(levels, 0.0);
+			Arrays.fill(levelTotals, 0.0);
+		}
+
+		protected long estimatedBytes() {
+			return 8L * (1 + gaussians.length + levels.length + levelTotals.length);
+		}
+	}
+}
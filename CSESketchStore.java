@@ -0,0 +1,206 @@
+package moa.classifiers.meta;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.quantiles.DoublesSketch;
+import com.yahoo.sketches.quantiles.DoublesUnion;
+import com.yahoo.sketches.quantiles.UpdateDoublesSketch;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Off-heap home for the quantile sketches of a CSE. Each class has its own arena of direct memory blocks that regions
+// are cut from in turn, so the store is not limited to the 2GB a single buffer can hold. With a bounded reference a
+// class gets fixed regions up front: its update sketches, sized for one epoch, the compact sketch of each epoch of
+// its ring, the ring merged, and the ring merged with the current epoch for a test. One more region holds the union
+// that builds the merged sketches. An unbounded reference only has update sketches; each starts in a region for 2k
+// items and is moved to one twice the size whenever it fills its region. A drift empties the class's arena, so the
+// regions it outgrew are released with the sketches that wrap them.
+// Blocks are direct ByteBuffers, as the memory library's own allocator needs JDK 8 internals; wrapping them on JDK 9+
+// needs --add-exports java.base/sun.nio.ch=ALL-UNNAMED. A block is freed once no sketch wraps it. Sketches are not
+// kept in memory-mapped files for reuse across restarts: a checkpoint carries them along with the windows and
+// classifiers they must match, and restoreCheckpoint copies them into their regions.
+public class CSESketchStore implements Closeable {
+
+	//Direct memory is taken in blocks of at least this many bytes
+	protected static final long BLOCK_BYTES = 1L << 20;
+
+	protected final int numAttributes;
+	protected final int k;
+	protected final int numEpochs;
+	protected final long epochSize;
+	protected final long updateBytes;
+	protected final long epochBytes;
+	protected final long ringBytes;
+	protected final long mergedBytes;
+	protected final long[][] capacities;
+	//Region of each class's current update sketch of each attribute
+	protected final WritableMemory[][] updateRegions;
+	protected final WritableMemory[][][] epochRegions;
+	protected final WritableMemory[][] ringRegions;
+	protected final WritableMemory[][] mergedRegions;
+	protected final WritableMemory[] blocks;
+	protected final long[] blockUsed;
+	protected WritableMemory unionRegion;
+
+	//Store for the sketches of numClasses classes and numAttributes attributes, with references bounded to numEpochs
+	//epochs of epochSize instances, or unbounded when numEpochs is 0. Memory is taken as classes are first given
+	//sketches
+	public CSESketchStore(int numClasses, int numAttributes, int k, int numEpochs, long epochSize) {
+		this.numAttributes = numAttributes;
+		this.k = k;
+		this.numEpochs = numEpochs;
+		this.epochSize = epochSize;
+		this.updateBytes = aligned(DoublesSketch.getUpdatableStorageBytes(k, numEpochs > 0 ? epochSize : 2L * k));
+		this.epochBytes = aligned(DoublesSketch.getCompactStorageBytes(k, epochSize));
+		this.ringBytes = aligned(DoublesSketch.getUpdatableStorageBytes(k, numEpochs * epochSize));
+		this.mergedBytes = aligned(DoublesSketch.getUpdatableStorageBytes(k, (numEpochs + 1) * epochSize));
+		this.capacities = new long[numClasses][numAttributes];
+		this.updateRegions = new WritableMemory[numClasses][];
+		this.epochRegions = new WritableMemory[numClasses][][];
+		this.ringRegions = new WritableMemory[numClasses][];
+		this.mergedRegions = new WritableMemory[numClasses][];
+		this.blocks = new WritableMemory[numClasses];
+		this.blockUsed = new long[numClasses];
+	}
+
+	//Rounded up to whole longs so every region stays aligned
+	protected static long aligned(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	protected static WritableMemory allocate(long bytes) {
+		if(bytes > Integer.MAX_VALUE){
+			throw new IllegalArgumentException("Sketch region of " + bytes + " bytes is over the 2GB a direct buffer can hold");
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int)bytes).order(ByteOrder.nativeOrder());
+		try {
+			return WritableMemory.wrap(buffer);
+		} catch (IllegalAccessError e) {
+			throw new IllegalStateException("Direct sketch storage needs the JVM option "
+					+ "--add-exports java.base/sun.nio.ch=ALL-UNNAMED on JDK 9 and later", e);
+		}
+	}
+
+	//Region of bytes cut from the arena of class c, which takes a new block when the current one is used up
+	protected WritableMemory region(int c, long bytes) {
+		if(blocks[c] == null || blockUsed[c] + bytes > blocks[c].getCapacity()){
+			blocks[c] = allocate(Math.max(BLOCK_BYTES, bytes));
+			blockUsed[c] = 0;
+		}
+		WritableMemory region = blocks[c].writableRegion(blockUsed[c], bytes);
+		blockUsed[c] += bytes;
+		return region;
+	}
+
+	//Sets up class c the first time it is given sketches, cutting all its regions if its reference is bounded
+	protected void ensureRegions(int c) {
+		if(updateRegions[c] != null) return;
+		updateRegions[c] = new WritableMemory[numAttributes];
+		if(numEpochs == 0) return;
+		epochRegions[c] = new WritableMemory[numEpochs][numAttributes];
+		ringRegions[c] = new WritableMemory[numAttributes];
+		mergedRegions[c] = new WritableMemory[numAttributes];
+		for(int j = 0; j < numAttributes; j++){
+			updateRegions[c][j] = region(c, updateBytes);
+			for(int e = 0; e < numEpochs; e++){
+				epochRegions[c][e][j] = region(c, epochBytes);
+			}
+			ringRegions[c][j] = region(c, ringBytes);
+			mergedRegions[c][j] = region(c, mergedBytes);
+		}
+	}
+
+	//Region for the update sketch of class c and attribute j holding at least n items. A bounded reference's region
+	//is reused; an unbounded reference's is replaced by a new one
+	protected WritableMemory updateRegion(int c, int j, long n) {
+		ensureRegions(c);
+		if(numEpochs > 0){
+			capacities[c][j] = epochSize;
+			return updateRegions[c][j];
+		}
+		long capacity = 2L * k;
+		while(capacity < n) capacity *= 2;
+		capacities[c][j] = capacity;
+		updateRegions[c][j] = region(c, aligned(DoublesSketch.getUpdatableStorageBytes(k, capacity)));
+		return updateRegions[c][j];
+	}
+
+	//Empty update sketch of class c and attribute j, overwriting whatever its region held
+	public UpdateDoublesSketch newSketch(int c, int j) {
+		return DoublesSketch.builder().setK(k).build(updateRegion(c, j, 0));
+	}
+
+	//Update sketch of class c and attribute j holding the updatable serialised sketch in bytes
+	public UpdateDoublesSketch load(int c, int j, byte[] bytes) throws IOException {
+		WritableMemory region = updateRegion(c, j, DoublesSketch.wrap(Memory.wrap(bytes)).getN());
+		if(bytes.length > region.getCapacity()){
+			throw new IOException("Serialised sketch of " + bytes.length + " bytes does not fit its region of " + region.getCapacity());
+		}
+		region.putByteArray(0, bytes, 0, bytes.length);
+		return UpdateDoublesSketch.wrap(region);
+	}
+
+	//Whether sketch, the update sketch of class c and attribute j, must move before its next update. Only an
+	//unbounded reference's sketches move; a bounded one's are reset at the end of each epoch
+	public boolean isFull(int c, int j, UpdateDoublesSketch sketch) {
+		return numEpochs == 0 && sketch.getN() >= capacities[c][j];
+	}
+
+	//Copy of sketch, which fills its region, in a region of twice its capacity, for an unbounded reference
+	public UpdateDoublesSketch grow(int c, int j, UpdateDoublesSketch sketch) {
+		WritableMemory old = updateRegions[c][j];
+		WritableMemory region = updateRegion(c, j, 2 * capacities[c][j]);
+		old.copyTo(0, region, 0, sketch.getUpdatableStorageBytes());
+		return UpdateDoublesSketch.wrap(region);
+	}
+
+	//Starts class c on a new block, after a drift emptied its unbounded reference. Its sketches must be replaced
+	//with newSketch, so the blocks they wrap can be freed
+	public void clearClass(int c) {
+		blocks[c] = null;
+		blockUsed[c] = 0;
+	}
+
+	//Region for the compact sketch of attribute j in epoch e of class c's ring
+	public WritableMemory epochRegion(int c, int e, int j) {
+		ensureRegions(c);
+		return epochRegions[c][e][j];
+	}
+
+	public WritableMemory ringRegion(int c, int j) {
+		ensureRegions(c);
+		return ringRegions[c][j];
+	}
+
+	public WritableMemory mergedRegion(int c, int j) {
+		ensureRegions(c);
+		return mergedRegions[c][j];
+	}
+
+	//Empty union whose state is kept in the store, for one merge at a time
+	public DoublesUnion newUnion() {
+		if(unionRegion == null){
+			unionRegion = allocate(mergedBytes);
+		}
+		return DoublesUnion.builder().setMaxK(k).build(unionRegion);
+	}
+
+	//Drops the store's references to its blocks; sketches still wrapping them keep them alive until they are replaced
+	@Override
+	public void close() {
+		for(int c = 0; c < blocks.length; c++){
+			blocks[c] = null;
+			updateRegions[c] = null;
+			epochRegions[c] = null;
+			ringRegions[c] = null;
+			mergedRegions[c] = null;
+		}
+		unionRegion = null;
+	}
+}
@@ -0,0 +1,317 @@
+package moa.classifiers.meta;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+import com.yahoo.labs.samoa.instances.SparseInstance;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Window for sparse instances: each slot keeps only its non-zero attributes, as ascending indices and values, and
+// only those reach the sorted columns and counts. The zeros stay implicit: a sorted column holds the non-zero values
+// of its attribute and the remaining instances of the window are zeros, and level 0 of a counted attribute is
+// whatever the other levels leave. Push and eviction cost is proportional to the non-zero values of the instance.
+// Missing values are treated as zeros.
+public class CSESparseClassWindow extends CSEClassWindow {
+
+	private static final long serialVersionUID = 1L;
+
+	protected final int numAttributes;
+	protected final int[] sortedIndexOf;
+	protected final int[] countedIndexOf;
+	protected final int[][] slotIndices;
+	protected final double[][] slotValues;
+	protected final int[] slotNonZeros;
+
+	public CSESparseClassWindow(int numAttributes, int capacity, int[] sortedAttributes, int[] countedAttributes,
+			int[] countOffsets) {
+		this(numAttributes, capacity, sortedAttributes, countedAttributes, countOffsets, true);
+	}
+
+	protected CSESparseClassWindow(int numAttributes, int capacity, int[] sortedAttributes, int[] countedAttributes,
+			int[] countOffsets, boolean slots) {
+		super(0, slots ? capacity : 0, 0, capacity, sortedAttributes, countedAttributes, countOffsets);
+		this.numAttributes = numAttributes;
+		this.sortedIndexOf = indexOf(sortedAttributes, numAttributes);
+		this.countedIndexOf = indexOf(countedAttributes, numAttributes);
+		this.slotIndices = new int[slots ? capacity : 0][];
+		this.slotValues = new double[slots ? capacity : 0][];
+		this.slotNonZeros = new int[slots ? capacity : 0];
+		for(int i = 0; i < slotIndices.length; i++){
+			slotIndices[i] = new int[0];
+			slotValues[i] = new double[0];
+		}
+	}
+
+	//Position of each attribute in attributes, or -1
+	public static int[] indexOf(int[] attributes, int numAttributes) {
+		int[] indexOf = new int[numAttributes];
+		Arrays.fill(indexOf, -1);
+		for(int j = 0; j < attributes.length; j++){
+			indexOf[attributes[j]] = j;
+		}
+		return indexOf;
+	}
+
+	//Sets level 0 of each counted attribute in counts to total less its other levels
+	public static void fillZeroLevels(long[] counts, int[] countOffsets, int numCounted, long total) {
+		for(int j = 0; j < numCounted; j++){
+			long others = 0;
+			for(int i = countOffsets[j] + 1; i < countOffsets[j + 1]; i++) others += counts[i];
+			counts[countOffsets[j]] = total - others;
+		}
+	}
+
+	@Override
+	public CSEClassWindow snapshot() {
+		CSESparseClassWindow copy = new CSESparseClassWindow(numAttributes, capacity, sortedAttributes,
+				countedAttributes, countOffsets, false);
+		for(int j = 0; j < sortedAttributes.length; j++){
+			copy.sortedColumns[j] = Arrays.copyOf(sortedColumns[j], sortedSizes[j]);
+		}
+		System.arraycopy(sortedSizes, 0, copy.sortedSizes, 0, sortedSizes.length);
+		System.arraycopy(sums, 0, copy.sums, 0, sums.length);
+		System.arraycopy(sumSquares, 0, copy.sumSquares, 0, sumSquares.length);
+		System.arraycopy(counts, 0, copy.counts, 0, counts.length);
+		copy.size = size;
+		copy.head = head;
+		return copy;
+	}
+
+	@Override
+	public void push(Instance inst) {
+		if(size == capacity) removeFromSummaries(oldestSlot());
+		head = head + 1 == capacity ? 0 : head + 1;
+		int nonZeros = 0;
+		int numValues = inst.numValues();
+		ensureSlotCapacity(head, numValues);
+		for(int i = 0; i < numValues; i++){
+			double v = inst.valueSparse(i);
+			if(v == 0.0 || Double.isNaN(v)) continue;
+			slotIndices[head][nonZeros] = inst.index(i);
+			slotValues[head][nonZeros] = v;
+			nonZeros++;
+		}
+		slotNonZeros[head] = nonZeros;
+		weights[head] = inst.weight();
+		if(size < capacity) size++;
+		addToSummaries(head);
+	}
+
+	protected void ensureSlotCapacity(int slot, int nonZeros) {
+		if(slotIndices[slot].length < nonZeros){
+			slotIndices[slot] = new int[nonZeros];
+			slotValues[slot] = new double[nonZeros];
+		}
+	}
+
+	@Override
+	protected void addToSummaries(int slot) {
+		int[] indices = slotIndices[slot];
+		double[] values = slotValues[slot];
+		for(int i = 0; i < slotNonZeros[slot]; i++){
+			int a = indices[i];
+			double v = values[i];
+			int j = sortedIndexOf[a];
+			if(j >= 0){
+				double[] sorted = sortedColumns[j];
+				if(sortedSizes[j] == sorted.length){
+					sorted = sortedColumns[j] = Arrays.copyOf(sorted, Math.min(capacity, Math.max(4, 2 * sorted.length)));
+				}
+				int pos = Arrays.binarySearch(sorted, 0, sortedSizes[j], v);
+				if(pos < 0) pos = -pos - 1;
+				System.arraycopy(sorted, pos, sorted, pos + 1, sortedSizes[j] - pos);
+				sorted[pos] = v;
+				sortedSizes[j]++;
+				sums[j] += v;
+				sumSquares[j] += v * v;
+			}
+			j = countedIndexOf[a];
+			if(j >= 0){
+				counts[countOffsets[j] + (int)v]++;
+			}
+		}
+	}
+
+	@Override
+	protected void removeFromSummaries(int slot) {
+		int[] indices = slotIndices[slot];
+		double[] values = slotValues[slot];
+		for(int i = 0; i < slotNonZeros[slot]; i++){
+			int a = indices[i];
+			double v = values[i];
+			int j = sortedIndexOf[a];
+			if(j >= 0){
+				double[] sorted = sortedColumns[j];
+				int pos = Arrays.binarySearch(sorted, 0, sortedSizes[j], v);
+				System.arraycopy(sorted, pos + 1, sorted, pos, sortedSizes[j] - pos - 1);
+				sortedSizes[j]--;
+				sums[j] -= v;
+				sumSquares[j] -= v * v;
+			}
+			j = countedIndexOf[a];
+			if(j >= 0){
+				counts[countOffsets[j] + (int)v]--;
+			}
+		}
+	}
+
+	//Mean and variance over the whole window, zeros included
+	@Override
+	public double mean(int sortedIndex) {
+		return size == 0 ? 0.0 : sums[sortedIndex] / size;
+	}
+
+	@Override
+	public double variance(int sortedIndex) {
+		if(size < 2) return 0.0;
+		double mean = sums[sortedIndex] / size;
+		return Math.max(0.0, (sumSquares[sortedIndex] - size * mean * mean) / (size - 1));
+	}
+
+	@Override
+	public long[] nominalCounts() {
+		fillZeroLevels(counts, countOffsets, countedAttributes.length, size);
+		return counts;
+	}
+
+	@Override
+	public long estimatedBytes() {
+		long bytes = 8L * (weights.length + sums.length + sumSquares.length + counts.length) + 4L * slotNonZeros.length;
+		for(double[] sorted:sortedColumns) bytes += 8L * sorted.length;
+		for(int slot = 0; slot < slotIndices.length; slot++){
+			bytes += 12L * slotIndices[slot].length;
+		}
+		return bytes;
+	}
+
+	//KS distance as CSEClassWindow.ksDistance, walking the sorted non-zero values with the window's zeros merged in
+	//as one run at 0
+	@Override
+	public double ksDistance(int sortedIndex, CSEReferenceCDF reference) {
+		int nonZeros = sortedSizes[sortedIndex];
+		return CSETestKernels.ksDistance(sortedColumns[sortedIndex], nonZeros, size - nonZeros, reference.values,
+				reference.cumulative, reference.length);
+	}
+
+	@Override
+	public double ksUpperBound(int sortedIndex, CSEReferenceCDF reference, int points) {
+		int nonZeros = sortedSizes[sortedIndex];
+		return CSETestKernels.ksUpperBound(sortedColumns[sortedIndex], nonZeros, size - nonZeros, reference.values,
+				reference.cumulative, reference.length, points);
+	}
+
+	public int nonZeros(int slot) {
+		return slotNonZeros[slot];
+	}
+
+	public int nonZeroIndex(int slot, int i) {
+		return slotIndices[slot][i];
+	}
+
+	public double nonZeroValue(int slot, int i) {
+		return slotValues[slot][i];
+	}
+
+	@Override
+	public double value(int slot, int attribute) {
+		int pos = Arrays.binarySearch(slotIndices[slot], 0, slotNonZeros[slot], attribute);
+		return pos < 0 ? 0.0 : slotValues[slot][pos];
+	}
+
+	//Sets only the non-zeros of slot, so target must be zero elsewhere: fresh, or unloaded after its last load
+	@Override
+	public void load(int slot, Instance target) {
+		for(int i = 0; i < slotNonZeros[slot]; i++){
+			target.setValue(slotIndices[slot][i], slotValues[slot][i]);
+		}
+		target.setWeight(weights[slot]);
+	}
+
+	//Zeros the non-zeros of slot again, so a retraining pass costs time proportional to the non-zeros it loads
+	@Override
+	public void unload(int slot, Instance target) {
+		for(int i = 0; i < slotNonZeros[slot]; i++){
+			target.setValue(slotIndices[slot][i], 0.0);
+		}
+	}
+
+	//Writes the instances held, oldest first, each as its number of non-zeros, indices, values and weight
+	@Override
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(size);
+		for(int i = size - 1; i >= 0; i--){
+			int slot = slot(i);
+			out.writeInt(slotNonZeros[slot]);
+			for(int k = 0; k < slotNonZeros[slot]; k++) out.writeInt(slotIndices[slot][k]);
+			for(int k = 0; k < slotNonZeros[slot]; k++) out.writeDouble(slotValues[slot][k]);
+			out.writeDouble(weights[slot]);
+		}
+	}
+
+	@Override
+	public void readFrom(ByteBuffer in) {
+		clear();
+		int n = in.getInt();
+		for(int slot = 0; slot < n; slot++){
+			int nonZeros = in.getInt();
+			ensureSlotCapacity(slot, nonZeros);
+			for(int k = 0; k < nonZeros; k++) slotIndices[slot][k] = in.getInt();
+			for(int k = 0; k < nonZeros; k++) slotValues[slot][k] = in.getDouble();
+			slotNonZeros[slot] = nonZeros;
+			weights[slot] = in.getDouble();
+		}
+		head = n - 1;
+		size = n;
+		for(int slot = 0; slot < n; slot++){
+			addToSummaries(slot);
+		}
+	}
+
+	@Override
+	public Instance toInstance(int slot, InstancesHeader header) {
+		Instance inst = storingClass(weights[slot], slotValues[slot], slotIndices[slot], slotNonZeros[slot],
+				numAttributes, header.classIndex());
+		inst.setDataset(header);
+		return inst;
+	}
+
+	//Copy of inst that can be relabelled. A SparseInstance ignores values set for attributes it does not store, so
+	//a sparse copy is made to store the class attribute, as a zero if it was left out
+	public static Instance copyStoringClass(Instance inst) {
+		if(!(inst instanceof SparseInstance)) return inst.copy();
+		int nonZeros = inst.numValues();
+		double[] values = new double[nonZeros];
+		int[] indices = new int[nonZeros];
+		for(int i = 0; i < nonZeros; i++){
+			values[i] = inst.valueSparse(i);
+			indices[i] = inst.index(i);
+		}
+		Instance copy = storingClass(inst.weight(), values, indices, nonZeros, inst.numAttributes(), inst.classIndex());
+		copy.setDataset(inst.dataset());
+		return copy;
+	}
+
+	//Sparse instance of the first nonZeros ascending indices and their values, with classIndex inserted if missing
+	protected static SparseInstance storingClass(double weight, double[] values, int[] indices, int nonZeros,
+			int numAttributes, int classIndex) {
+		int pos = Arrays.binarySearch(indices, 0, nonZeros, classIndex);
+		if(pos >= 0){
+			return new SparseInstance(weight, Arrays.copyOf(values, nonZeros), Arrays.copyOf(indices, nonZeros), numAttributes);
+		}
+		pos = -pos - 1;
+		double[] storedValues = new double[nonZeros + 1];
+		int[] storedIndices = new int[nonZeros + 1];
+		System.arraycopy(values, 0, storedValues, 0, pos);
+		System.arraycopy(indices, 0, storedIndices, 0, pos);
+		storedIndices[pos] = classIndex;
+		System.arraycopy(values, pos, storedValues, pos + 1, nonZeros - pos);
+		System.arraycopy(indices, pos, storedIndices, pos + 1, nonZeros - pos);
+		return new SparseInstance(weight, storedValues, storedIndices, numAttributes);
+	}
+}
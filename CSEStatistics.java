@@ -0,0 +1,147 @@
+package moa.classifiers.meta;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import moa.core.Measurement;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Running counters behind CSE's model measurements. Per-class drift counts are only written by the training
+// thread and are plain longs; times written from the training, drift-test and retraining threads are summed in
+// LongAdders, and latencies are tallied in fixed-size histograms of atomic counts. Nothing here locks or allocates
+// once constructed.
+public class CSEStatistics implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	protected final long[] classDrifts;
+	protected final LongAdder driftTests = new LongAdder();
+	protected final LongAdder driftTestNanos = new LongAdder();
+	protected final LongAdder screenedTests = new LongAdder();
+	protected final LongAdder retrains = new LongAdder();
+	protected final LongAdder retrainNanos = new LongAdder();
+	protected final LatencyHistogram trainLatency = new LatencyHistogram();
+	protected final LatencyHistogram predictLatency = new LatencyHistogram();
+
+	public CSEStatistics(int numClasses) {
+		this.classDrifts = new long[numClasses];
+	}
+
+	public void recordDrift(int c) {
+		classDrifts[c]++;
+	}
+
+	public void recordDriftTest(long nanos) {
+		driftTests.increment();
+		driftTestNanos.add(nanos);
+	}
+
+	//A KS test the pre-screen cleared without computing its distance
+	public void recordScreenedTest() {
+		screenedTests.increment();
+	}
+
+	public void recordRetrain(long nanos) {
+		retrains.increment();
+		retrainNanos.add(nanos);
+	}
+
+	//Time spent on a retrain that is completed elsewhere, such as collecting the examples for a background build
+	public void addRetrainTime(long nanos) {
+		retrainNanos.add(nanos);
+	}
+
+	public long classDrifts(int c) {
+		return classDrifts[c];
+	}
+
+	public LatencyHistogram trainLatency() {
+		return trainLatency;
+	}
+
+	public LatencyHistogram predictLatency() {
+		return predictLatency;
+	}
+
+	public void addTimingMeasurements(ArrayList<Measurement> measurements) {
+		measurements.add(new Measurement("drift tests", driftTests.sum()));
+		measurements.add(new Measurement("drift test time (ms)", driftTestNanos.sum() / 1e6));
+		measurements.add(new Measurement("KS tests screened", screenedTests.sum()));
+		measurements.add(new Measurement("retrains", retrains.sum()));
+		measurements.add(new Measurement("retrain time (ms)", retrainNanos.sum() / 1e6));
+		trainLatency.addMeasurements(measurements, "train");
+		predictLatency.addMeasurements(measurements, "predict");
+	}
+
+	// Log-linear histogram of nanosecond latencies: exact below 16ns, then 8 buckets per power of two, so any
+	// reported percentile is within 12.5% above the true value. The maximum is kept exactly.
+	public static class LatencyHistogram implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		protected static final int SUB_BUCKETS = 8;
+		protected static final int NUM_BUCKETS = 16 + (63 - 4) * SUB_BUCKETS;
+
+		protected final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+		protected final AtomicLong max = new AtomicLong();
+
+		public void record(long nanos) {
+			if(nanos < 0) nanos = 0;
+			counts.incrementAndGet(bucket(nanos));
+			long previous = max.get();
+			while(nanos > previous && !max.compareAndSet(previous, nanos)){
+				previous = max.get();
+			}
+		}
+
+		protected static int bucket(long nanos) {
+			if(nanos < 16) return (int)nanos;
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			int sub = (int)(nanos >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+			return 16 + (exponent - 4) * SUB_BUCKETS + sub;
+		}
+
+		//Largest latency falling in bucket i
+		protected static long upperBound(int i) {
+			if(i < 16) return i;
+			int exponent = (i - 16) / SUB_BUCKETS + 4;
+			long lower = (long)(SUB_BUCKETS + (i - 16) % SUB_BUCKETS) << (exponent - 3);
+			return lower + (1L << (exponent - 3)) - 1;
+		}
+
+		public long count() {
+			long total = 0;
+			for(int i = 0; i < NUM_BUCKETS; i++) total += counts.get(i);
+			return total;
+		}
+
+		public long max() {
+			return max.get();
+		}
+
+		//Latency at or below which a fraction p of recordings fall, in nanoseconds, or 0 if none were recorded
+		public long percentile(double p) {
+			long total = count();
+			if(total == 0) return 0;
+			long target = Math.max(1, (long)Math.ceil(p * total));
+			long seen = 0;
+			for(int i = 0; i < NUM_BUCKETS; i++){
+				seen += counts.get(i);
+				if(seen >= target) return Math.min(upperBound(i), max.get());
+			}
+			return max.get();
+		}
+
+		public void addMeasurements(ArrayList<Measurement> measurements, String name) {
+			measurements.add(new Measurement(name + " latency p50 (us)", percentile(0.5) / 1e3));
+			measurements.add(new Measurement(name + " latency p99 (us)", percentile(0.99) / 1e3));
+			measurements.add(new Measurement(name + " latency p99.9 (us)", percentile(0.999) / 1e3));
+			measurements.add(new Measurement(name + " latency max (us)", max() / 1e3));
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package moa.classifiers.meta;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Test statistics of the drift tests computed straight over primitive arrays. The chi-square kernel runs over a
+// range of nominal attributes of the flat count tables, finding each attribute's level count and statistic in two
+// branch-free passes over its levels. The KS kernel is the merge walk of a sorted window column against a reference
+// CDF's arrays, with a variant for sparse columns whose zeros are implicit. The KS bound is the pre-screen: an upper
+// bound on the same distance from a few points of the reference CDF and a binary search of the window for each.
+public final class CSETestKernels {
+
+	private CSETestKernels() {
+	}
+
+	//For each nominal attribute j in [from, to) whose levels start at offsets[j], sets levels[j] to the number of
+	//levels not empty in both tables, or -1 where one of them has fewer than 5 expected counts, and
+	//statistics[statisticsOffset + j] to the statistic ChiSquareTest.chiSquareDataSetsComparison gives over those
+	//levels, or NaN where there are fewer than 2 levels to test
+	public static void chiSquare(long[] observed, long[] expected, int[] offsets, int from, int to,
+			double[] statistics, int statisticsOffset, int[] levels){
+		for(int j = from; j < to; j++){
+			int start = offsets[j];
+			int end = offsets[j + 1];
+			long observedSum = 0;
+			long expectedSum = 0;
+			int nonEmpty = 0;
+			int small = 0;
+			for(int i = start; i < end; i++){
+				long o = observed[i];
+				long e = expected[i];
+				observedSum += o;
+				expectedSum += e;
+				int used = (o | e) != 0 ? 1 : 0;
+				nonEmpty += used;
+				small |= used & (e < 5 ? 1 : 0);
+			}
+			levels[j] = small != 0 ? -1 : nonEmpty;
+			if(levels[j] < 2){
+				statistics[statisticsOffset + j] = Double.NaN;
+				continue;
+			}
+
+			double sumSq = 0.0;
+			if(observedSum != expectedSum){
+				double weight = Math.sqrt((double) observedSum / (double) expectedSum);
+				for(int i = start; i < end; i++){
+					long total = observed[i] + expected[i];
+					double dev = observed[i] / weight - expected[i] * weight;
+					sumSq += total == 0 ? 0.0 : dev * dev / total;
+				}
+			} else {
+				for(int i = start; i < end; i++){
+					long total = observed[i] + expected[i];
+					double dev = observed[i] - expected[i];
+					sumSq += total == 0 ? 0.0 : dev * dev / total;
+				}
+			}
+			statistics[statisticsOffset + j] = sumSq;
+		}
+	}
+
+	//KS distance between the first n values of sorted and the CDF given by the first length entries of values and
+	//cumulative, as CSEClassWindow.ksDistance describes
+	public static double ksDistance(double[] sorted, int n, double[] values, double[] cumulative, int length){
+		if(n == 0 || length == 0) return 0.0;
+		double delta = 0.0;
+		int r = 0;
+		double below = 0.0;
+		for(int i = 0; i < n; ){
+			double v = sorted[i];
+			int j = i + 1;
+			while(j < n && sorted[j] == v) j++;
+			while(r < length && values[r] < v) below = cumulative[r++];
+			double atOrBelow = r < length && values[r] == v ? cumulative[r] : below;
+			delta = Math.max(delta, Math.max(Math.abs(below - (double)i / n), Math.abs(atOrBelow - (double)j / n)));
+			i = j;
+		}
+		return delta;
+	}
+
+	//KS distance as above for a sample of the first nonZeros values of sorted, none of them 0, together with zeros
+	//values of 0 that are merged into the walk as one run
+	public static double ksDistance(double[] sorted, int nonZeros, int zeros, double[] values, double[] cumulative,
+			int length){
+		int n = nonZeros + zeros;
+		if(n == 0 || length == 0) return 0.0;
+		double delta = 0.0;
+		int r = 0;
+		double below = 0.0;
+		int seen = 0;
+		boolean zerosPending = zeros > 0;
+		for(int i = 0; i < nonZeros || zerosPending; ){
+			double v;
+			int run;
+			if(zerosPending && (i == nonZeros || sorted[i] > 0.0)){
+				v = 0.0;
+				run = zeros;
+				zerosPending = false;
+			} else {
+				v = sorted[i];
+				int j = i + 1;
+				while(j < nonZeros && sorted[j] == v) j++;
+				run = j - i;
+				i = j;
+			}
+			while(r < length && values[r] < v) below = cumulative[r++];
+			double atOrBelow = r < length && values[r] == v ? cumulative[r] : below;
+			delta = Math.max(delta, Math.max(Math.abs(below - (double)seen / n), Math.abs(atOrBelow - (double)(seen + run) / n)));
+			seen += run;
+		}
+		return delta;
+	}
+
+	//Upper bound on the KS distance ksDistance gives for the same sample, read at points entries of the reference CDF
+	//spread evenly from its smallest to its largest value. Between two of them, at x and y, the reference CDF lies
+	//between its values at x and y and so does the window CDF, so neither can be further from the other than the
+	//larger of the differences across that gap; below the smallest the reference CDF is 0 and above the largest it
+	//is 1. Every bound is a difference of the same doubles the walk subtracts, so rounding cannot take the distance
+	//above it
+	public static double ksUpperBound(double[] sorted, int nonZeros, int zeros, double[] values, double[] cumulative,
+			int length, int points){
+		int n = nonZeros + zeros;
+		if(n == 0 || length == 0) return 0.0;
+		points = Math.max(2, Math.min(points, length));
+		double previousReference = 0.0;
+		double previousWindow = 0.0;
+		double bound = 0.0;
+		for(int p = 0; p < points; p++){
+			int r = (int)((long)p * (length - 1) / (points - 1));
+			double v = values[r];
+			double reference = cumulative[r];
+			double window = (double)(atOrBelow(sorted, nonZeros, v) + (v >= 0.0 ? zeros : 0)) / n;
+			bound = Math.max(bound, Math.max(reference - previousWindow, window - previousReference));
+			previousReference = reference;
+			previousWindow = window;
+		}
+		return Math.max(bound, 1.0 - previousWindow);
+	}
+
+	//Number of the first n values of sorted that are at or below v
+	protected static int atOrBelow(double[] sorted, int n, double v){
+		int low = 0;
+		int high = n;
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(sorted[mid] <= v) low = mid + 1; else high = mid;
+		}
+		return low;
+	}
+}
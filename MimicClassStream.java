@@ -21,6 +21,8 @@ import moa.tasks.TaskMonitor;
 
 public class MimicClassStream extends AbstractOptionHandler implements InstanceStream {
 
+	private static final long serialVersionUID = 1L;
+
 	protected InstancesHeader streamHeader;
 	int mimicClassInstancesGenerated;
 	InstanceStream sourceStream;
@@ -121,12 +123,12 @@ public class MimicClassStream extends AbstractOptionHandler implements InstanceS
 		//Generate header
 		InstancesHeader h = sourceStream.getHeader();
 		
-		FastVector attributes = new FastVector();
+		FastVector<Attribute> attributes = new FastVector<Attribute>();
 		for (int i = 0; i < h.numInputAttributes(); i++){
 			attributes.add(h.attribute(i));
 		}
 		
-		FastVector classLabels = new FastVector();
+		FastVector<String> classLabels = new FastVector<String>();
         for (int i = 0; i < h.numClasses(); i++) {
             classLabels.addElement("class" + i);
         }
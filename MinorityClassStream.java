@@ -21,6 +21,8 @@ import moa.tasks.TaskMonitor;
 
 public class MinorityClassStream extends AbstractOptionHandler implements InstanceStream {
 
+	private static final long serialVersionUID = 1L;
+
 	protected InstancesHeader streamHeader;
 	int instancesGenerated;
 	InstanceStream sourceStream;
@@ -132,12 +134,12 @@ public class MinorityClassStream extends AbstractOptionHandler implements Instan
 		//Generate header
 		InstancesHeader h = sourceStream.getHeader();
 		
-		FastVector attributes = new FastVector();
+		FastVector<Attribute> attributes = new FastVector<Attribute>();
 		for (int i = 0; i < h.numInputAttributes(); i++){
 			attributes.add(h.attribute(i));
 		}
 		
-		FastVector classLabels = new FastVector();
+		FastVector<String> classLabels = new FastVector<String>();
         for (int i = 0; i < h.numClasses(); i = i+2) {
             classLabels.addElement("class" + (i/2));
         }
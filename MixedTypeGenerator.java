@@ -80,10 +80,10 @@ public class MixedTypeGenerator extends AbstractOptionHandler implements
     	numClasses = numClassesOption.getValue();
     	
         // generate header
-        FastVector attributes = new FastVector();
+        FastVector<Attribute> attributes = new FastVector<Attribute>();
 
         for(int i = 0; i < nominalAttributes; i++){
-        	FastVector thisNominalAttribute = new FastVector();
+        	FastVector<String> thisNominalAttribute = new FastVector<String>();
         	for(int j = 0; j < nominalAttributeDepthOption.getValue(); j++){
         		thisNominalAttribute.addElement("level" + j);
         	}
@@ -91,11 +91,10 @@ public class MixedTypeGenerator extends AbstractOptionHandler implements
         }
 
         for(int i = 0; i < numericAttributesOption.getValue(); i++){
-        	FastVector thisNumericAttribute = new FastVector();
         	attributes.add(new Attribute("numericAtt" + i));
         }
         
-        FastVector thisClassAttribute = new FastVector();
+        FastVector<String> thisClassAttribute = new FastVector<String>();
         for(int i = 0; i < numClasses; i++){
         	thisClassAttribute.addElement("class" + i);
         }
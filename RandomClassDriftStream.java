@@ -23,6 +23,8 @@ import moa.tasks.TaskMonitor;
 
 public class RandomClassDriftStream extends AbstractOptionHandler implements InstanceStream {
 
+	private static final long serialVersionUID = 1L;
+
 	protected InstancesHeader streamHeader;
 	int instancesGenerated;
 	InstanceStream sourceStream;
@@ -122,12 +124,12 @@ public class RandomClassDriftStream extends AbstractOptionHandler implements Ins
 		//Generate header
 		InstancesHeader h = sourceStream.getHeader();
 		
-		FastVector attributes = new FastVector();
+		FastVector<Attribute> attributes = new FastVector<Attribute>();
 		for (int i = 0; i < h.numInputAttributes(); i++){
 			attributes.add(h.attribute(i));
 		}
 		
-		FastVector classLabels = new FastVector();
+		FastVector<String> classLabels = new FastVector<String>();
         for (int i = 0; i < h.numClasses(); i++) {
             classLabels.addElement("class" + i);
         }
@@ -23,6 +23,8 @@ import moa.tasks.TaskMonitor;
 
 public class RandomDriftStream extends AbstractOptionHandler implements InstanceStream {
 
+	private static final long serialVersionUID = 1L;
+
 	protected InstancesHeader streamHeader;
 	int instancesGenerated;
 	InstanceStream sourceStream;
@@ -88,9 +90,9 @@ public class RandomDriftStream extends AbstractOptionHandler implements Instance
 			//System.out.println("Drift on " + thisClass);
 			for(int c = 0; c < numClasses; c++){
 				for(int a = 0; a < numAtts; a++){
-					attScale[(int)c][a] = rng.nextDouble() - 0.5;
-					attTranslate[(int)c][a] = rng.nextDouble() - 0.5;
-					if(nominalVars.contains(a)) adjNominals[(int)c][a] = rng.nextInt(numNominalValues[a]);
+					attScale[c][a] = rng.nextDouble() - 0.5;
+					attTranslate[c][a] = rng.nextDouble() - 0.5;
+					if(nominalVars.contains(a)) adjNominals[c][a] = rng.nextInt(numNominalValues[a]);
 				}
 			}
 		}
@@ -124,12 +126,12 @@ public class RandomDriftStream extends AbstractOptionHandler implements Instance
 		//Generate header
 		InstancesHeader h = sourceStream.getHeader();
 		
-		FastVector attributes = new FastVector();
+		FastVector<Attribute> attributes = new FastVector<Attribute>();
 		for (int i = 0; i < h.numInputAttributes(); i++){
 			attributes.add(h.attribute(i));
 		}
 		
-		FastVector classLabels = new FastVector();
+		FastVector<String> classLabels = new FastVector<String>();
         for (int i = 0; i < h.numClasses(); i++) {
             classLabels.addElement("class" + i);
         }
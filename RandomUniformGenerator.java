@@ -128,12 +128,12 @@ public class RandomUniformGenerator extends AbstractOptionHandler implements Ins
         }
 		
 		// generate header
-        FastVector featureLabels = new FastVector();
+        FastVector<Attribute> featureLabels = new FastVector<Attribute>();
         for (int i = 0; i < numFeatures; i++) {
         	featureLabels.addElement(new Attribute("feature" + (i)));
         }
         
-        FastVector classLabels = new FastVector();
+        FastVector<String> classLabels = new FastVector<String>();
         for (int i = 0; i < numClasses; i++) {
             classLabels.addElement("class" + (i + 1));
         }
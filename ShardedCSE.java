@@ -0,0 +1,173 @@
+package moa.classifiers.meta;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.github.javacliparser.IntOption;
+import com.github.javacliparser.MultiChoiceOption;
+import com.github.javacliparser.StringOption;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+
+import moa.classifiers.AbstractClassifier;
+import moa.classifiers.MultiClassClassifier;
+import moa.core.Measurement;
+import moa.options.ClassOption;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// CSE with its classes split into contiguous ranges over several shards. Every training instance is broadcast to
+// all shards, each of which trains and tests only its own classes, and votes are gathered from the shards and
+// combined by class. Classifiers and references are split over the shards, but every shard keeps a window for
+// every class, for routing and for drawing negatives when retraining. A drift empties its class's window, so at
+// each instance that may be a test point of its class the coordinator waits for the owner to report drifts and
+// has the other shards drain the drifted windows before sending on further instances. With synchronous drift
+// tests the shards together then vote as one CSE would; with asyncDriftTesting a drift is only forwarded at the
+// owner's next such instance, so the other shards' windows lag behind it.
+public class ShardedCSE extends AbstractClassifier implements MultiClassClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	public ClassOption cseOption = new ClassOption("cse", 'e', "Configuration of the CSE run by each shard.",
+			CSE.class, "moa.classifiers.meta.CSE");
+
+	public IntOption numShardsOption = new IntOption("numShards", 's', "Number of shards the classes are split over",
+			2, 1, Integer.MAX_VALUE);
+
+	public MultiChoiceOption transportOption = new MultiChoiceOption("transport", 't', "How shards are reached",
+			new String[]{"InProcess", "Loopback"},
+			new String[]{"Shards run on threads of this JVM", "Shards are served over loopback sockets, as remote workers would be"},
+			0);
+
+	public StringOption workersOption = new StringOption("workers", 'w',
+			"Comma-separated host:port list of running CSEShardServer workers, one shard each (overrides numShards and transport)", "");
+
+	public IntOption queueSizeOption = new IntOption("queueSize", 'q', "Training instances an in-process shard may queue",
+			1024, 1, Integer.MAX_VALUE);
+
+	protected int numClasses;
+	protected transient ArrayList<CSEShardTransport> shards;
+	protected int[] classOwners;
+	//The owners' window fill and positives of each class, to find the instances that may be test points
+	protected int[] windowFills;
+	protected int[] positivesSeen;
+	protected int windowSize;
+	protected int testInterval;
+
+	@Override
+	public boolean isRandomizable() {
+		return false;
+	}
+
+	@Override
+	public void setModelContext(InstancesHeader instHeader) {
+		closeShards();
+		numClasses = instHeader.numClasses();
+		CSE prototype = (CSE) getPreparedClassOption(this.cseOption);
+
+		String workers = workersOption.getValue().trim();
+		String[] addresses = workers.isEmpty() ? new String[0] : workers.split(",");
+		int numShards = Math.min(addresses.length > 0 ? addresses.length : numShardsOption.getValue(), numClasses);
+		windowSize = prototype.windowSizeOption.getValue();
+		testInterval = prototype.testIntervalOption.getValue() > 0 ? prototype.testIntervalOption.getValue() : windowSize;
+		classOwners = new int[numClasses];
+		windowFills = new int[numClasses];
+		positivesSeen = new int[numClasses];
+
+		shards = new ArrayList<CSEShardTransport>(numShards);
+		try {
+			for(int s = 0; s < numShards; s++){
+				int from = s * numClasses / numShards;
+				int to = (s + 1) * numClasses / numShards;
+				Arrays.fill(classOwners, from, to, s);
+				CSE shard = (CSE) prototype.copy();
+				if(addresses.length > 0){
+					String[] hostPort = addresses[s].trim().split(":");
+					shards.add(new CSEShardTransport.Remote(hostPort[0], Integer.parseInt(hostPort[1]), shard, instHeader, from, to));
+				} else if(transportOption.getChosenIndex() == 1){
+					shards.add(new CSEShardTransport.Remote("localhost", CSEShardServer.startLoopback(), shard, instHeader, from, to));
+				} else {
+					shards.add(new CSEShardTransport.InProcess(shard, instHeader, from, to, queueSizeOption.getValue()));
+				}
+			}
+		} catch (IOException e) {
+			closeShards();
+			throw new RuntimeException("Could not connect to CSE shard", e);
+		}
+	}
+
+	//A class can only be tested once its window is full and its positives reach a multiple of testInterval. At such
+	//an instance the owner trains while the others are sent it, then any drifts it reports are forwarded
+	@Override
+	public void trainOnInstanceImpl(Instance inst) {
+		Instance instCopy = inst.copy();
+		int c = (int)inst.classValue();
+		windowFills[c] = Math.min(windowFills[c] + 1, windowSize);
+		positivesSeen[c]++;
+		boolean mayTest = windowFills[c] == windowSize && positivesSeen[c] % testInterval == 0;
+		try {
+			for(int s = 0; s < shards.size(); s++){
+				if(!mayTest || s != classOwners[c]) shards.get(s).train(instCopy);
+			}
+			if(!mayTest) return;
+			for(int d:shards.get(classOwners[c]).trainReportingDrifts(instCopy)){
+				//As the owner restarts its count of positives from the drained window
+				positivesSeen[d] = windowFills[d];
+				windowFills[d] = 0;
+				for(int s = 0; s < shards.size(); s++){
+					if(s != classOwners[d]) shards.get(s).drainWindow(d);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Lost connection to CSE shard", e);
+		}
+	}
+
+	//Each shard votes 0 for classes it does not own, so the shard votes are summed
+	@Override
+	public double[] getVotesForInstance(Instance inst) {
+		double[] votes = new double[numClasses];
+		try {
+			for(CSEShardTransport shard:shards){
+				shard.requestVotes(inst);
+			}
+			for(CSEShardTransport shard:shards){
+				double[] shardVotes = shard.receiveVotes();
+				for(int c = 0; c < shardVotes.length && c < numClasses; c++){
+					votes[c] += shardVotes[c];
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Lost connection to CSE shard", e);
+		}
+		return votes;
+	}
+
+	@Override
+	public void resetLearningImpl() {
+		closeShards();
+	}
+
+	protected void closeShards() {
+		if(shards == null) return;
+		for(CSEShardTransport shard:shards){
+			try {
+				shard.close();
+			} catch (IOException e) {
+				//Already disconnected
+			}
+		}
+		shards = null;
+	}
+
+	@Override
+	protected Measurement[] getModelMeasurementsImpl() {
+		return new Measurement[]{new Measurement("shards", shards == null ? 0 : shards.size())};
+	}
+
+	@Override
+	public void getModelDescription(StringBuilder out, int indent) {
+	}
+}
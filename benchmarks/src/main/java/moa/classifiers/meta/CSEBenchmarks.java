@@ -0,0 +1,200 @@
+package moa.classifiers.meta;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.streams.InstanceStream;
+import moa.streams.generators.MixedTypeGenerator;
+import moa.streams.generators.RandomUniformGenerator;
+import moa.tasks.NullMonitor;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Training, prediction and drift-test throughput of CSE over numClasses, windowSize, qsK, attribute count, base
+// learner, parallel training and reuse of training instances on fixed-seed MixedTypeGenerator or
+// RandomUniformGenerator streams, and the sampled latency of a drift trigger. Each trial starts from an ensemble
+// trained on the whole stream once, so windows are full and classes can be tested. Run with -prof gc for bytes
+// allocated per operation, which is what reuseTrainingInstances changes
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CSEBenchmarks {
+
+	@Param({"MixedType", "RandomUniform"})
+	public String generator;
+
+	@Param({"10", "100"})
+	public int numClasses;
+
+	@Param({"128"})
+	public int windowSize;
+
+	@Param({"256"})
+	public int qsK;
+
+	@Param({"10"})
+	public int attributes;
+
+	@Param({"trees.HoeffdingTree", "bayes.NaiveBayes"})
+	public String learner;
+
+	@Param({"false", "true"})
+	public boolean parallelTraining;
+
+	@Param({"false", "true"})
+	public boolean reuseTrainingInstances;
+
+	@Param({"20000"})
+	public int numInstances;
+
+	protected ArrayList<Instance> instances;
+	protected Instance[] batch;
+	protected double[][] votes;
+	protected CSE cse;
+	protected int next;
+	protected int nextClass;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		InstanceStream stream = createStream();
+		instances = new ArrayList<Instance>(numInstances);
+		for(int i = 0; i < numInstances; i++){
+			instances.add(stream.nextInstance().getData());
+		}
+		batch = new Instance[256];
+		cse = new CSE();
+		cse.windowSizeOption.setValue(windowSize);
+		cse.qsKOption.setValue(qsK);
+		cse.baseLearnerOption.setValueViaCLIString(learner);
+		if(parallelTraining) cse.parallelTrainingOption.set();
+		if(reuseTrainingInstances) cse.reuseTrainingInstancesOption.set();
+		cse.prepareForUse(new NullMonitor(), null);
+		cse.setModelContext(stream.getHeader());
+		for(Instance inst:instances){
+			cse.trainOnInstance(inst);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		cse.prepareForUse();
+	}
+
+	@Benchmark
+	public void train() {
+		cse.trainOnInstance(nextInstance());
+	}
+
+	@Benchmark
+	public double[] predict() {
+		return cse.getVotesForInstance(nextInstance());
+	}
+
+	//One block of batch.length instances scored class-major
+	@Benchmark
+	public double[][] predictBatch() {
+		for(int i = 0; i < batch.length; i++) batch[i] = nextInstance();
+		votes = cse.getVotesForInstances(batch, votes);
+		return votes;
+	}
+
+	//One drift test of the next class with enough data to test, without applying its result
+	@Benchmark
+	public boolean driftTest() {
+		for(int i = 0; i < numClasses; i++){
+			int c = nextClass;
+			nextClass = (nextClass + 1) % numClasses;
+			if(cse.classWindows.get(c).size() >= cse.windowSize && cse.referenceSizes[c] >= cse.windowSize){
+				return cse.testForDrift(c);
+			}
+		}
+		return false;
+	}
+
+	//Time from a test point to the replacement classifier being in place: one drift test, then the retraining a
+	//drift triggers, applied whatever the test found. Sampled per invocation, so the percentiles show the pause a
+	//drift adds to training
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public boolean driftTrigger(DriftTrigger trigger) {
+		boolean drift = cse.testForDrift(trigger.c);
+		cse.handleDrift(trigger.c, cse.testPValues);
+		return drift;
+	}
+
+	// Class the next drift trigger retrains, in turn, with its window refilled from its own instances after the
+	// previous trigger of the class emptied it
+	@State(Scope.Thread)
+	public static class DriftTrigger {
+
+		protected ArrayList<ArrayList<Instance>> classInstances;
+		protected int[] nextInstances;
+		protected int c = -1;
+
+		@Setup(Level.Invocation)
+		public void refill(CSEBenchmarks benchmarks) {
+			CSE cse = benchmarks.cse;
+			if(classInstances == null){
+				classInstances = new ArrayList<ArrayList<Instance>>(benchmarks.numClasses);
+				for(int d = 0; d < benchmarks.numClasses; d++) classInstances.add(new ArrayList<Instance>());
+				for(Instance inst:benchmarks.instances) classInstances.get((int)inst.classValue()).add(inst);
+				nextInstances = new int[benchmarks.numClasses];
+			}
+			do {
+				c = (c + 1) % benchmarks.numClasses;
+			} while(classInstances.get(c).isEmpty());
+			ArrayList<Instance> instances = classInstances.get(c);
+			while(cse.classWindows.get(c).size() < cse.windowSize || cse.referenceSizes[c] < cse.windowSize){
+				cse.trainOnInstance(instances.get(nextInstances[c]));
+				nextInstances[c] = (nextInstances[c] + 1) % instances.size();
+			}
+		}
+	}
+
+	protected Instance nextInstance() {
+		Instance inst = instances.get(next);
+		next = next + 1 == instances.size() ? 0 : next + 1;
+		return inst;
+	}
+
+	//MixedTypeGenerator splits the attributes evenly between numeric and nominal
+	protected InstanceStream createStream() {
+		if(generator.equals("RandomUniform")){
+			RandomUniformGenerator stream = new RandomUniformGenerator();
+			stream.numClassesOption.setValue(numClasses);
+			stream.numFeaturesOption.setValue(attributes);
+			stream.instanceRandomSeedOption.setValue(1);
+			stream.prepareForUse();
+			return stream;
+		}
+		MixedTypeGenerator stream = new MixedTypeGenerator();
+		stream.numClassesOption.setValue(numClasses);
+		stream.numericAttributesOption.setValue(attributes - attributes / 2);
+		stream.nominalAttributesOption.setValue(attributes / 2);
+		stream.instanceRandomSeedOption.setValue(1);
+		stream.rulesRandomSeedOption.setValue(1);
+		stream.prepareForUse();
+		return stream;
+	}
+}
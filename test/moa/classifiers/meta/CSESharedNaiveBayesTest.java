@@ -0,0 +1,158 @@
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.DenseInstance;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Votes of the shared table against one-vs-rest NaiveBayes models trained separately on the same examples, through
+// training and rebuilds
+public class CSESharedNaiveBayesTest {
+
+	protected static final int NUM_CLASSES = 4;
+	protected static final int[] NUMERIC = {0, 2};
+	protected static final int[] NOMINAL = {1};
+	protected static final int[] OFFSETS = {0, 3};
+
+	@Test
+	public void votesMatchSeparateModels() {
+		Random rng = new Random(3);
+		CSESharedNaiveBayes shared = new CSESharedNaiveBayes(NUM_CLASSES, 0, NUM_CLASSES, NUMERIC, NOMINAL, OFFSETS);
+		BinaryBayes[] separate = new BinaryBayes[NUM_CLASSES];
+		CSEClassWindow[] windows = new CSEClassWindow[NUM_CLASSES];
+		for(int c = 0; c < NUM_CLASSES; c++){
+			separate[c] = new BinaryBayes();
+			windows[c] = new CSEClassWindow(3, 20, NUMERIC, NOMINAL, OFFSETS);
+		}
+		for(int t = 0; t < 5000; t++){
+			int c = rng.nextInt(NUM_CLASSES);
+			double[] x = {100 + rng.nextGaussian() * (c + 1) + c, rng.nextInt(3), rng.nextDouble() * c};
+			DenseInstance inst = new DenseInstance(1 + rng.nextInt(2), x);
+			shared.train(inst, c);
+			for(int d = 0; d < NUM_CLASSES; d++) separate[d].train(x, inst.weight(), d == c ? 1 : 0);
+			windows[c].push(inst);
+
+			//Rebuild a class from its window positives and one negative drawn per positive, as CSE does
+			if(t % 700 == 699){
+				int d = rng.nextInt(NUM_CLASSES);
+				shared.resetClass(d);
+				separate[d] = new BinaryBayes();
+				for(int i = 0; i < windows[d].size(); i++){
+					retrain(shared, separate[d], d, windows[d], windows[d].slot(i), 1);
+					CSEClassWindow other = windows[(d + 1 + rng.nextInt(NUM_CLASSES - 1)) % NUM_CLASSES];
+					if(other.size() > 0) retrain(shared, separate[d], d, other, other.slot(rng.nextInt(other.size())), 0);
+				}
+			}
+
+			double[] q = {100 + rng.nextGaussian() * 3, rng.nextInt(3), rng.nextDouble() * 3};
+			DenseInstance query = new DenseInstance(1.0, q);
+			for(int d = 0; d < NUM_CLASSES; d++){
+				assertEquals(separate[d].vote(q), shared.positiveVote(query, d), 1e-9);
+			}
+		}
+	}
+
+	//A long stream of large, spread values, then a rebuild of class 0 from a window of small values followed by a few
+	//identical negatives, so the totals dwarf what its model has seen since and its negatives have no variance
+	@Test
+	public void longStreamVotesMatchSeparateModels() {
+		Random rng = new Random(5);
+		CSESharedNaiveBayes shared = new CSESharedNaiveBayes(NUM_CLASSES, 0, NUM_CLASSES, NUMERIC, NOMINAL, OFFSETS);
+		BinaryBayes[] separate = new BinaryBayes[NUM_CLASSES];
+		for(int c = 0; c < NUM_CLASSES; c++) separate[c] = new BinaryBayes();
+		CSEClassWindow window = new CSEClassWindow(3, 20, NUMERIC, NOMINAL, OFFSETS);
+		for(int t = 0; t < 400000; t++){
+			int c = rng.nextInt(NUM_CLASSES);
+			double[] x = {1e6 + rng.nextGaussian() * 1e3 * (c + 1), rng.nextInt(3), 1e5 * rng.nextDouble()};
+			DenseInstance inst = new DenseInstance(1.0, x);
+			shared.train(inst, c);
+			for(int d = 0; d < NUM_CLASSES; d++) separate[d].train(x, 1.0, d == c ? 1 : 0);
+		}
+		for(int t = 0; t < 20; t++){
+			double[] x = {8 + rng.nextGaussian(), rng.nextInt(3), 8 + rng.nextGaussian()};
+			DenseInstance inst = new DenseInstance(1.0, x);
+			shared.train(inst, 0);
+			for(int d = 0; d < NUM_CLASSES; d++) separate[d].train(x, 1.0, d == 0 ? 1 : 0);
+			window.push(inst);
+		}
+		shared.resetClass(0);
+		separate[0] = new BinaryBayes();
+		for(int i = 0; i < window.size(); i++){
+			retrain(shared, separate[0], 0, window, window.slot(i), 1);
+		}
+		double[] x = {7.0, 1, 7.0};
+		for(int t = 0; t < 20; t++){
+			shared.train(new DenseInstance(1.0, x), 1);
+			for(int d = 0; d < NUM_CLASSES; d++) separate[d].train(x, 1.0, d == 1 ? 1 : 0);
+			for(double[] q:new double[][]{x, {1e6, 0, 5e4}}){
+				DenseInstance query = new DenseInstance(1.0, q);
+				for(int d = 0; d < NUM_CLASSES; d++){
+					assertEquals(separate[d].vote(q), shared.positiveVote(query, d), 1e-9);
+				}
+			}
+		}
+	}
+
+	protected static void retrain(CSESharedNaiveBayes shared, BinaryBayes separate, int c, CSEClassWindow window, int slot,
+			int label) {
+		shared.retrainOn(c, window, slot, label);
+		double[] x = {window.value(slot, 0), window.value(slot, 1), window.value(slot, 2)};
+		separate.train(x, window.weight(slot), label);
+	}
+
+	//A NaiveBayes over numeric attributes 0 and 2 and nominal attribute 1 with three levels, for labels 0 and 1
+	protected static class BinaryBayes {
+
+		protected final double[] classWeights = new double[2];
+		protected final double[][][] gaussians = new double[2][3][3];
+		protected final double[][] levels = new double[2][3];
+		protected final double[] levelTotals = new double[2];
+
+		protected void train(double[] x, double w, int label) {
+			classWeights[label] += w;
+			for(int a:NUMERIC){
+				double[] g = gaussians[label][a];
+				if(g[0] > 0){
+					g[0] += w;
+					double lastMean = g[1];
+					g[1] += w * (x[a] - lastMean) / g[0];
+					g[2] += w * (x[a] - lastMean) * (x[a] - g[1]);
+				} else {
+					g[1] = x[a];
+					g[0] = w;
+				}
+			}
+			levels[label][(int)x[1]] += w;
+			levelTotals[label] += w;
+		}
+
+		protected double vote(double[] x) {
+			double sum = classWeights[0] + classWeights[1];
+			if(!(classWeights[1] > 0)) return 0.0;
+			double[] p = new double[2];
+			for(int label = 0; label < 2; label++){
+				p[label] = classWeights[label] / sum;
+				p[label] *= density(gaussians[label][0], x[0]);
+				p[label] *= levelTotals[label] > 0 ? (levels[label][(int)x[1]] + 1) / (levelTotals[label] + 3) : 0.0;
+				p[label] *= density(gaussians[label][2], x[2]);
+			}
+			return p[0] + p[1] > 0 ? p[1] / (p[0] + p[1]) : 0.0;
+		}
+
+		protected static double density(double[] g, double v) {
+			if(!(g[0] > 0)) return 0.0;
+			double stdDev = Math.sqrt(g[0] > 1 ? g[2] / (g[0] - 1) : 0.0);
+			if(stdDev > 0){
+				double diff = v - g[1];
+				return 1 / (Math.sqrt(2 * Math.PI) * stdDev) * Math.exp(-(diff * diff / (2 * stdDev * stdDev)));
+			}
+			return v == g[1] ? 1.0 : 0.0;
+		}
+	}
+}
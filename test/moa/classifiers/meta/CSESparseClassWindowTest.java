@@ -0,0 +1,81 @@
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.SparseInstance;
+import com.yahoo.sketches.quantiles.UpdateDoublesSketch;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// A sparse window against a dense window pushed the same instances, most of whose values are zero
+public class CSESparseClassWindowTest {
+
+	protected static final int NUM_ATTRIBUTES = 6;
+	protected static final int[] SORTED = {0, 1, 3};
+	protected static final int[] COUNTED = {2, 4};
+	protected static final int[] OFFSETS = {0, 3, 7};
+
+	@Test
+	public void matchesDenseWindow() {
+		Random rng = new Random(4);
+		CSEClassWindow dense = new CSEClassWindow(NUM_ATTRIBUTES, 30, SORTED, COUNTED, OFFSETS);
+		CSESparseClassWindow sparse = new CSESparseClassWindow(NUM_ATTRIBUTES, 30, SORTED, COUNTED, OFFSETS);
+		Instance denseTarget = new DenseInstance(NUM_ATTRIBUTES);
+		Instance sparseTarget = new DenseInstance(NUM_ATTRIBUTES);
+		for(int t = 0; t < 500; t++){
+			double[] values = new double[NUM_ATTRIBUTES];
+			for(int a:SORTED) values[a] = rng.nextInt(3) == 0 ? rng.nextInt(5) - 2 : 0.0;
+			values[2] = rng.nextInt(3) == 0 ? rng.nextInt(3) : 0.0;
+			values[4] = rng.nextInt(3) == 0 ? rng.nextInt(4) : 0.0;
+			values[5] = rng.nextGaussian();
+			dense.push(new DenseInstance(1.0, values));
+			sparse.push(sparseInstance(values));
+
+			UpdateDoublesSketch sketch = UpdateDoublesSketch.builder().build();
+			for(int i = 0; i < 50; i++) sketch.update(rng.nextInt(2) == 0 ? 0.0 : rng.nextInt(5) - 2);
+			CSEReferenceCDF reference = new CSEReferenceCDF();
+			reference.refresh(sketch);
+			for(int j = 0; j < SORTED.length; j++){
+				assertEquals(dense.ksDistance(j, reference), sparse.ksDistance(j, reference), 1e-12);
+				assertEquals(dense.mean(j), sparse.mean(j), 1e-9);
+				assertEquals(dense.variance(j), sparse.variance(j), 1e-9);
+			}
+			assertArrayEquals(dense.nominalCounts(), sparse.nominalCounts());
+
+			//Loading and unloading one slot after another leaves the sparse target as a dense load would
+			for(int k = 0; k < 3; k++){
+				int slot = dense.slot(rng.nextInt(dense.size()));
+				dense.load(slot, denseTarget);
+				sparse.load(slot, sparseTarget);
+				for(int a = 0; a < NUM_ATTRIBUTES; a++){
+					assertEquals(dense.value(slot, a), sparse.value(slot, a), 0.0);
+					assertEquals(denseTarget.value(a), sparseTarget.value(a), 0.0);
+				}
+				sparse.unload(slot, sparseTarget);
+			}
+		}
+	}
+
+	//The non-zeros of values in attribute order
+	protected static SparseInstance sparseInstance(double[] values) {
+		int nonZeros = 0;
+		for(double v:values) if(v != 0.0) nonZeros++;
+		double[] sparseValues = new double[nonZeros];
+		int[] indices = new int[nonZeros];
+		int i = 0;
+		for(int a = 0; a < values.length; a++){
+			if(values[a] == 0.0) continue;
+			sparseValues[i] = values[a];
+			indices[i++] = a;
+		}
+		return new SparseInstance(1.0, sparseValues, indices, values.length);
+	}
+}
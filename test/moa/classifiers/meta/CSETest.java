@@ -0,0 +1,511 @@
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.InstancesHeader;
+import com.yahoo.sketches.quantiles.UpdateDoublesSketch;
+
+import moa.streams.generators.MixedTypeGenerator;
+import moa.tasks.NullMonitor;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Equivalence of CSE's alternative training and prediction paths on a fixed-seed MixedTypeGenerator stream whose
+// rules change halfway, so classes drift and are retrained along the way
+public class CSETest {
+
+	protected static final int NUM_CLASSES = 8;
+	protected static final int NUM_INSTANCES = 6000;
+
+	@Rule
+	public TemporaryFolder temporary = new TemporaryFolder();
+
+	@Test
+	public void parallelTrainingMatchesSerial() {
+		ArrayList<Instance> instances = instances();
+		CSE serial = createCSE(false);
+		CSE parallel = createCSE(true);
+		for(Instance inst:instances){
+			serial.trainOnInstance(inst);
+			parallel.trainOnInstance(inst);
+		}
+		assertTrue(serial.getNumClassDrifts() > 0);
+		assertEquals(serial.getNumClassDrifts(), parallel.getNumClassDrifts());
+		assertSameVotes(serial, parallel, instances);
+	}
+
+	@Test
+	public void reuseTrainingInstancesMatchesAllocating() {
+		ArrayList<Instance> instances = instances();
+		CSE allocating = createCSE(false);
+		CSE reusing = createCSE(false);
+		reusing.reuseTrainingInstancesOption.set();
+		reusing.prepareForUse(new NullMonitor(), null);
+		reusing.setModelContext(header());
+		for(Instance inst:instances){
+			allocating.trainOnInstance(inst);
+			reusing.trainOnInstance(inst);
+		}
+		assertTrue(allocating.getNumClassDrifts() > 0);
+		assertEquals(allocating.getNumClassDrifts(), reusing.getNumClassDrifts());
+		assertSameVotes(allocating, reusing, instances);
+	}
+
+	//Per-class drift counts add up to the total, and no latency percentile exceeds the recorded maximum
+	@Test
+	public void statisticsAreConsistent() {
+		ArrayList<Instance> instances = instances();
+		CSE cse = createCSE(false);
+		cse.collectTimingsOption.set();
+		cse.prepareForUse(new NullMonitor(), null);
+		cse.setModelContext(header());
+		for(Instance inst:instances){
+			cse.getVotesForInstance(inst);
+			cse.trainOnInstance(inst);
+		}
+		long drifts = 0;
+		for(int c = 0; c < NUM_CLASSES; c++){
+			drifts += cse.statistics.classDrifts(c);
+		}
+		assertTrue(drifts > 0);
+		assertEquals(cse.getNumClassDrifts(), drifts);
+
+		CSEStatistics.LatencyHistogram recorded = new CSEStatistics.LatencyHistogram();
+		for(long nanos:new long[]{3, 17, 1000, 1001, 123456789}){
+			recorded.record(nanos);
+		}
+		for(CSEStatistics.LatencyHistogram histogram:new CSEStatistics.LatencyHistogram[]{
+				cse.statistics.trainLatency(), cse.statistics.predictLatency(), recorded}){
+			assertTrue(histogram.count() > 0);
+			for(double p:new double[]{0.0, 0.5, 0.9, 0.99, 0.999, 1.0}){
+				assertTrue(histogram.percentile(p) <= histogram.max());
+			}
+		}
+		assertEquals(123456789, recorded.percentile(1.0));
+	}
+
+	//Once every background rebuild is swapped in, each class classifier has seen what inline retraining showed it
+	@Test
+	public void backgroundRetrainingMatchesInline() {
+		ArrayList<Instance> instances = instances();
+		CSE inline = createCSE(false);
+		CSE background = createCSE(false);
+		background.backgroundRetrainingOption.set();
+		background.prepareForUse(new NullMonitor(), null);
+		background.setModelContext(header());
+		for(Instance inst:instances){
+			inline.trainOnInstance(inst);
+			background.trainOnInstance(inst);
+		}
+		for(int c = 0; c < NUM_CLASSES; c++){
+			background.finishRebuild(c);
+		}
+		assertTrue(inline.getNumClassDrifts() > 0);
+		assertEquals(inline.getNumClassDrifts(), background.getNumClassDrifts());
+		assertSameVotes(inline, background, instances);
+	}
+
+	//Routed negatives keep the weight training on every other class would give, and with every class sampled the
+	//candidates are the closest classes
+	@Test
+	public void routingKeepsNegativeWeight() {
+		ArrayList<Instance> instances = instances();
+		for(int candidates = 1; candidates <= 3; candidates++){
+			CSE cse = createCSE(false);
+			cse.negativeCandidatesOption.setValue(candidates);
+			cse.prepareForUse(new NullMonitor(), null);
+			cse.setModelContext(header());
+			for(int i = 0; i < instances.size(); i++){
+				Instance inst = instances.get(i);
+				int actualClass = (int)inst.classValue();
+				cse.routeNegatives(inst, actualClass);
+				assertEquals(0.0, cse.routingWeights[actualClass], 0.0);
+				double total = 0.0;
+				double farthestCandidate = Double.NEGATIVE_INFINITY;
+				double closestOther = Double.POSITIVE_INFINITY;
+				for(int c = 0; c < NUM_CLASSES; c++){
+					total += cse.routingWeights[c];
+					if(c == actualClass) continue;
+					double score = cse.routingScore(c, inst);
+					if(cse.routingWeights[c] == 1.0){
+						farthestCandidate = Math.max(farthestCandidate, score);
+					} else {
+						closestOther = Math.min(closestOther, score);
+					}
+				}
+				assertEquals(NUM_CLASSES - 1, total, 1e-9);
+				if(CSE.ROUTING_SAMPLE_FACTOR * candidates >= NUM_CLASSES - 1){
+					assertTrue(farthestCandidate <= closestOther);
+				}
+				cse.trainOnInstance(inst);
+			}
+			assertTrue(cse.getNumClassDrifts() > 0);
+		}
+	}
+
+	@Test
+	public void batchTrainingMatchesPerInstance() {
+		ArrayList<Instance> instances = instances();
+		CSE single = createCSE(false);
+		CSE batched = createCSE(false);
+		for(Instance inst:instances){
+			single.trainOnInstance(inst);
+		}
+		Instance[] block = new Instance[100];
+		for(int from = 0; from < instances.size(); from += block.length){
+			for(int i = 0; i < block.length; i++) block[i] = instances.get(from + i);
+			batched.trainOnInstances(block);
+		}
+		assertEquals(single.getNumClassDrifts(), batched.getNumClassDrifts());
+		assertSameVotes(single, batched, instances);
+	}
+
+	@Test
+	public void batchVotesMatchSingleVotes() {
+		ArrayList<Instance> instances = instances();
+		CSE cse = createCSE(false);
+		for(Instance inst:instances){
+			cse.trainOnInstance(inst);
+		}
+		Instance[] block = new Instance[64];
+		double[][] votes = null;
+		for(int from = 0; from + block.length <= instances.size(); from += 997){
+			for(int i = 0; i < block.length; i++) block[i] = instances.get(from + i);
+			votes = cse.getVotesForInstances(block, votes);
+			for(int i = 0; i < block.length; i++){
+				assertArrayEquals(cse.getVotesForInstance(block[i]), votes[i], 0.0);
+			}
+		}
+	}
+
+	//Voting leaves class values as they were, including for an instance given twice in one block
+	@Test
+	public void votingRestoresClassValues() {
+		ArrayList<Instance> instances = instances();
+		CSE cse = createCSE(false);
+		for(int i = 0; i < 1000; i++){
+			cse.trainOnInstance(instances.get(i));
+		}
+		int i = 1000;
+		while(instances.get(i).classValue() == 0.0) i++;
+		Instance[] block = {instances.get(i), instances.get(i + 1), instances.get(i)};
+		double[] expected = {block[0].classValue(), block[1].classValue()};
+		cse.getVotesForInstance(block[0]);
+		cse.getVotesForInstances(block);
+		assertEquals(expected[0], block[0].classValue(), 0.0);
+		assertEquals(expected[1], block[1].classValue(), 0.0);
+	}
+
+	//An ensemble restored from a full and then an incremental checkpoint carries on exactly as the original, and
+	//only the files the manifest names are left behind
+	@Test
+	public void checkpointRestoresFullState() throws IOException {
+		assertCheckpointRestores("", instances());
+	}
+
+	@Test
+	public void checkpointRestoresBoundedReferences() throws IOException {
+		assertCheckpointRestores("-h 3 -z 200", instances());
+		assertCheckpointRestores("-h 3 -z 200 -x 1", instances());
+	}
+
+	@Test
+	public void checkpointRestoresSparseWindows() throws IOException {
+		ArrayList<Instance> sparseInstances = new ArrayList<Instance>();
+		for(Instance inst:instances()){
+			Instance sparse = CSESparseClassWindowTest.sparseInstance(inst.toDoubleArray());
+			sparse.setDataset(header());
+			sparseInstances.add(sparse);
+		}
+		assertCheckpointRestores("-y", sparseInstances);
+	}
+
+	@Test
+	public void checkpointRestoresSharedNaiveBayes() throws IOException {
+		assertCheckpointRestores("-l bayes.NaiveBayes -w", instances());
+	}
+
+	//The original first checkpoints elsewhere and then, incrementally, into a directory another ensemble of the same
+	//header has written, so none of that ensemble's class files may be kept
+	protected void assertCheckpointRestores(String options, ArrayList<Instance> instances) throws IOException {
+		File directory = temporary.newFolder();
+		CSE foreign = createConfigured(options);
+		for(int i = instances.size() / 2; i < instances.size(); i++){
+			foreign.trainOnInstance(instances.get(i));
+		}
+		foreign.writeCheckpoint(directory, false);
+
+		CSE original = createConfigured(options);
+		int third = instances.size() / 3;
+		for(int i = 0; i < third; i++){
+			original.trainOnInstance(instances.get(i));
+		}
+		original.writeCheckpoint(temporary.newFolder(), false);
+		original.writeCheckpoint(directory, true);
+		CSE early = createConfigured(options);
+		early.restoreCheckpoint(directory);
+		assertSameVotes(original, early, instances);
+		for(int i = third; i < 2 * third; i++){
+			original.trainOnInstance(instances.get(i));
+		}
+		original.writeCheckpoint(directory, true);
+
+		CSE restored = createConfigured(options);
+		restored.restoreCheckpoint(directory);
+		assertEquals(original.getNumClassDrifts(), restored.getNumClassDrifts());
+		for(int i = 2 * third; i < instances.size(); i++){
+			original.trainOnInstance(instances.get(i));
+			restored.trainOnInstance(instances.get(i));
+		}
+		assertTrue(original.getNumClassDrifts() > 0);
+		assertEquals(original.getNumClassDrifts(), restored.getNumClassDrifts());
+		assertSameVotes(original, restored, instances);
+		assertEquals(NUM_CLASSES + 2, directory.list().length);
+	}
+
+	//The pre-screen clears KS tests without changing any decision
+	@Test
+	public void preScreenKeepsDecisions() {
+		ArrayList<Instance> instances = instances();
+		CSE full = new CSE();
+		full.windowSizeOption.setValue(50);
+		full.preScreenPointsOption.setValue(0);
+		full.prepareForUse(new NullMonitor(), null);
+		full.setModelContext(header());
+		CSE screened = new CSE();
+		screened.windowSizeOption.setValue(50);
+		screened.collectTimingsOption.set();
+		screened.prepareForUse(new NullMonitor(), null);
+		screened.setModelContext(header());
+		for(Instance inst:instances){
+			screened.trainOnInstance(inst);
+			full.trainOnInstance(inst);
+		}
+		assertTrue(full.getNumClassDrifts() > 0);
+		assertEquals(full.getNumClassDrifts(), screened.getNumClassDrifts());
+		assertSameVotes(full, screened, instances);
+		assertTrue(screened.statistics.screenedTests.sum() > 0);
+	}
+
+	//Sketches in direct memory behave as on the heap, for references bounded by epochs, whose ring is kept in the
+	//store, and for unbounded references, whose sketches move to larger regions as they grow
+	@Test
+	public void directSketchesMatchHeap() {
+		ArrayList<Instance> instances = instances();
+		for(int epochs:new int[]{3, 0}){
+			CSE heap = createBounded(0);
+			CSE direct = createBounded(1);
+			for(CSE cse:new CSE[]{heap, direct}){
+				cse.referenceEpochsOption.setValue(epochs);
+				cse.qsKOption.setValue(16);
+				cse.setModelContext(header());
+			}
+			for(Instance inst:instances){
+				heap.trainOnInstance(inst);
+				direct.trainOnInstance(inst);
+			}
+			assertTrue(heap.getNumClassDrifts() > 0);
+			assertEquals(heap.getNumClassDrifts(), direct.getNumClassDrifts());
+			assertSameVotes(heap, direct, instances);
+			for(int c = 0; c < NUM_CLASSES; c++){
+				List<UpdateDoublesSketch> heapReferences = heap.referenceSketches(c);
+				List<UpdateDoublesSketch> directReferences = direct.referenceSketches(c);
+				for(int j = 0; j < heapReferences.size(); j++){
+					assertTrue(directReferences.get(j).isDirect());
+					//Compaction draws from a random stream all sketches share, so only the exact summaries are compared
+					assertEquals(heapReferences.get(j).getN(), directReferences.get(j).getN());
+					assertEquals(heapReferences.get(j).getMinValue(), directReferences.get(j).getMinValue(), 0.0);
+					assertEquals(heapReferences.get(j).getMaxValue(), directReferences.get(j).getMaxValue(), 0.0);
+				}
+			}
+			direct.prepareForUse();
+		}
+	}
+
+	//Background tests find drifts under every stale result policy, and a test point reached while a test is in
+	//flight is tested once the result lands
+	@Test
+	public void asyncTestingDetectsDrifts() {
+		for(int policy = 0; policy < 3; policy++){
+			CSE cse = new CSE();
+			cse.windowSizeOption.setValue(50);
+			cse.asyncDriftTestingOption.set();
+			cse.staleResultPolicyOption.setChosenIndex(policy);
+			cse.prepareForUse(new NullMonitor(), null);
+			cse.setModelContext(header());
+			for(Instance inst:instances()){
+				cse.trainOnInstance(inst);
+			}
+			assertTrue(cse.getNumClassDrifts() > 0);
+			cse.prepareForUse();
+		}
+	}
+
+	//Events are opt-in; when enabled every drift is published, with NaN for the attributes its cycle left untested
+	@Test
+	public void driftEventsReportTestedAttributes() {
+		assertNull(createCSE(false).getDriftEvents());
+		CSE cse = new CSE();
+		cse.windowSizeOption.setValue(50);
+		cse.driftEventBufferSizeOption.setValue(4096);
+		cse.testsPerCycleOption.setValue(2);
+		cse.prepareForUse(new NullMonitor(), null);
+		cse.setModelContext(header());
+		for(Instance inst:instances()){
+			cse.trainOnInstance(inst);
+		}
+		ArrayList<double[]> pValues = new ArrayList<double[]>();
+		assertEquals(cse.getNumClassDrifts(), cse.getDriftEvents().drain(Collections.singletonList(
+				(CSEDriftListener) event -> pValues.add(event.getPValues().clone()))));
+		assertTrue(pValues.size() > 0);
+		for(double[] p:pValues){
+			int tested = 0;
+			for(double v:p) if(!Double.isNaN(v)) tested++;
+			assertTrue(tested <= 2);
+		}
+		cse.prepareForUse();
+	}
+
+	//With a bounded reference a cached CDF whose n matches the merged reference must also match its values, even
+	//after epochs have closed and evicted as many instances as were added
+	@Test
+	public void referenceCDFsFollowEpochs() {
+		CSE cse = new CSE();
+		cse.windowSizeOption.setValue(50);
+		cse.referenceEpochsOption.setValue(3);
+		cse.referenceEpochSizeOption.setValue(50);
+		cse.prepareForUse(new NullMonitor(), null);
+		cse.setModelContext(header());
+		int compared = 0;
+		for(Instance inst:instances()){
+			cse.trainOnInstance(inst);
+			int c = (int)inst.classValue();
+			List<UpdateDoublesSketch> references = cse.referenceSketches(c);
+			for(int j = 0; j < references.size(); j++){
+				CSEReferenceCDF cached = cse.classReferenceCDFs.get(c).get(j);
+				if(cached.n < 0 || cached.n != references.get(j).getN()) continue;
+				CSEReferenceCDF fresh = new CSEReferenceCDF();
+				fresh.refresh(references.get(j));
+				assertEquals(fresh.length, cached.length);
+				assertArrayEquals(Arrays.copyOf(fresh.values, fresh.length), Arrays.copyOf(cached.values, cached.length), 0.0);
+				assertArrayEquals(Arrays.copyOf(fresh.cumulative, fresh.length), Arrays.copyOf(cached.cumulative, cached.length), 0.0);
+				compared++;
+			}
+		}
+		assertTrue(compared > 0);
+	}
+
+	//Sparse windows fed sparse instances, which leave out the class attribute of class 0, train and retrain the same
+	//models as dense windows. Sketches large enough to hold every value keep the references exact in both
+	@Test
+	public void sparseWindowsMatchDense() {
+		ArrayList<Instance> instances = instances();
+		ArrayList<Instance> sparseInstances = new ArrayList<Instance>(instances.size());
+		for(Instance inst:instances){
+			Instance sparse = CSESparseClassWindowTest.sparseInstance(inst.toDoubleArray());
+			sparse.setDataset(header());
+			sparseInstances.add(sparse);
+		}
+		CSE dense = new CSE();
+		CSE sparse = new CSE();
+		for(CSE cse:new CSE[]{dense, sparse}){
+			cse.windowSizeOption.setValue(50);
+			cse.qsKOption.setValue(8192);
+			if(cse == sparse) cse.sparseInstancesOption.set();
+			cse.prepareForUse(new NullMonitor(), null);
+			cse.setModelContext(header());
+		}
+		for(int i = 0; i < instances.size(); i++){
+			dense.trainOnInstance(instances.get(i));
+			sparse.trainOnInstance(sparseInstances.get(i));
+		}
+		assertTrue(dense.getNumClassDrifts() > 0);
+		assertEquals(dense.getNumClassDrifts(), sparse.getNumClassDrifts());
+		int classZero = 0;
+		for(int i = 0; i < instances.size(); i += 37){
+			assertArrayEquals(dense.getVotesForInstance(instances.get(i)), sparse.getVotesForInstance(sparseInstances.get(i)), 1e-12);
+			if(instances.get(i).classValue() == 0.0) classZero++;
+		}
+		assertTrue(dense.statistics.classDrifts(0) > 0 && classZero > 0);
+	}
+
+	protected static void assertSameVotes(CSE expected, CSE actual, ArrayList<Instance> instances) {
+		for(int i = 0; i < instances.size(); i += 37){
+			assertArrayEquals(expected.getVotesForInstance(instances.get(i)), actual.getVotesForInstance(instances.get(i)), 0.0);
+		}
+	}
+
+	protected static CSE createCSE(boolean parallel) {
+		CSE cse = new CSE();
+		cse.windowSizeOption.setValue(50);
+		if(parallel){
+			cse.parallelTrainingOption.set();
+			cse.numThreadsOption.setValue(4);
+		}
+		//Prepares the base learner option, which CSE.prepareForUse() leaves to the task running it
+		cse.prepareForUse(new NullMonitor(), null);
+		cse.setModelContext(header());
+		return cse;
+	}
+
+	protected static CSE createConfigured(String options) {
+		CSE cse = new CSE();
+		cse.getOptions().setViaCLIString("-n 50 " + options);
+		cse.prepareForUse(new NullMonitor(), null);
+		cse.setModelContext(header());
+		return cse;
+	}
+
+	protected static CSE createBounded(int sketchStorage) {
+		CSE cse = new CSE();
+		cse.windowSizeOption.setValue(50);
+		cse.referenceEpochsOption.setValue(3);
+		cse.referenceEpochSizeOption.setValue(200);
+		cse.sketchStorageOption.setChosenIndex(sketchStorage);
+		cse.prepareForUse(new NullMonitor(), null);
+		cse.setModelContext(header());
+		return cse;
+	}
+
+	protected static InstancesHeader header() {
+		return stream(1).getHeader();
+	}
+
+	//The first half from one set of rules and the second half from another
+	protected static ArrayList<Instance> instances() {
+		ArrayList<Instance> instances = new ArrayList<Instance>(NUM_INSTANCES);
+		MixedTypeGenerator before = stream(1);
+		MixedTypeGenerator after = stream(2);
+		for(int i = 0; i < NUM_INSTANCES; i++){
+			instances.add((i < NUM_INSTANCES / 2 ? before : after).nextInstance().getData());
+		}
+		return instances;
+	}
+
+	protected static MixedTypeGenerator stream(int rulesSeed) {
+		MixedTypeGenerator stream = new MixedTypeGenerator();
+		stream.numClassesOption.setValue(NUM_CLASSES);
+		stream.numericAttributesOption.setValue(4);
+		stream.nominalAttributesOption.setValue(3);
+		stream.instanceRandomSeedOption.setValue(1);
+		stream.rulesRandomSeedOption.setValue(rulesSeed);
+		stream.prepareForUse();
+		return stream;
+	}
+}
@@ -0,0 +1,150 @@
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.math3.stat.inference.ChiSquareTest;
+import org.apache.commons.math3.stat.inference.KolmogorovSmirnovTest;
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.DenseInstance;
+import com.yahoo.sketches.quantiles.UpdateDoublesSketch;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// The test kernels against the commons-math statistics they stand in for
+public class CSETestKernelsTest {
+
+	//Levels empty in both tables are dropped, then a table with a level of fewer than 5 expected counts or fewer
+	//than 2 levels is not tested, and the rest match ChiSquareTest bit for bit
+	@Test
+	public void chiSquareMatchesChiSquareTest() {
+		Random rng = new Random(1);
+		ChiSquareTest test = new ChiSquareTest();
+		for(int t = 0; t < 20000; t++){
+			int numAttributes = 1 + rng.nextInt(4);
+			int[] offsets = new int[numAttributes + 1];
+			for(int j = 0; j < numAttributes; j++) offsets[j + 1] = offsets[j] + 1 + rng.nextInt(5);
+			long[] observed = new long[offsets[numAttributes]];
+			long[] expected = new long[offsets[numAttributes]];
+			for(int i = 0; i < observed.length; i++){
+				observed[i] = rng.nextInt(3) == 0 ? 0 : 1 + rng.nextInt(30);
+				expected[i] = rng.nextInt(3) == 0 ? 0 : 1 + rng.nextInt(30);
+			}
+			double[] statistics = new double[numAttributes + 2];
+			int[] levels = new int[numAttributes];
+			CSETestKernels.chiSquare(observed, expected, offsets, 0, numAttributes, statistics, 2, levels);
+			for(int j = 0; j < numAttributes; j++){
+				long[][] trimmed = trim(observed, expected, offsets[j], offsets[j + 1]);
+				if(trimmed == null){
+					assertEquals(-1, levels[j]);
+					assertTrue(Double.isNaN(statistics[2 + j]));
+				} else if(trimmed[0].length < 2){
+					assertEquals(trimmed[0].length, levels[j]);
+					assertTrue(Double.isNaN(statistics[2 + j]));
+				} else {
+					assertEquals(trimmed[0].length, levels[j]);
+					if(sum(trimmed[0]) == 0) continue;
+					assertEquals(test.chiSquareDataSetsComparison(trimmed[0], trimmed[1]), statistics[2 + j], 0.0);
+				}
+			}
+		}
+	}
+
+	//While a reference holds fewer than 2k values its sketch keeps them all, so the KS distance must equal the exact
+	//two-sample statistic, ties included
+	@Test
+	public void ksDistanceIsExact() {
+		Random rng = new Random(2);
+		KolmogorovSmirnovTest test = new KolmogorovSmirnovTest();
+		int k = 256;
+		for(int t = 0; t < 500; t++){
+			int windowSize = 2 + rng.nextInt(100);
+			int referenceSize = 1 + rng.nextInt(2 * k - 1);
+			int spread = 1 + rng.nextInt(50);
+			CSEClassWindow window = new CSEClassWindow(1, windowSize, new int[]{0}, new int[0], new int[]{0});
+			UpdateDoublesSketch sketch = UpdateDoublesSketch.builder().setK(k).build();
+			double[] reference = new double[referenceSize];
+			for(int i = 0; i < referenceSize; i++){
+				reference[i] = rng.nextInt(spread);
+				sketch.update(reference[i]);
+			}
+			double[] values = new double[windowSize];
+			for(int i = 0; i < windowSize; i++){
+				values[i] = rng.nextInt(spread) + (t % 2 == 0 ? 0.0 : 0.5 * rng.nextInt(2));
+				window.push(new DenseInstance(1.0, new double[]{values[i]}));
+			}
+			CSEReferenceCDF cdf = new CSEReferenceCDF();
+			cdf.refresh(sketch);
+			assertEquals(exactDistance(reference, values), window.ksDistance(0, cdf), 1e-12);
+			if(t % 2 == 1) assertEquals(test.kolmogorovSmirnovStatistic(reference, values), window.ksDistance(0, cdf), 1e-12);
+		}
+	}
+
+	//The pre-screen bound is never below the distance, for dense windows and for sparse ones with zeros implicit
+	@Test
+	public void ksUpperBoundIsConservative() {
+		Random rng = new Random(5);
+		for(int t = 0; t < 2000; t++){
+			int windowSize = 1 + rng.nextInt(100);
+			int spread = 1 + rng.nextInt(20);
+			CSEClassWindow dense = new CSEClassWindow(1, windowSize, new int[]{0}, new int[0], new int[]{0});
+			CSESparseClassWindow sparse = new CSESparseClassWindow(1, windowSize, new int[]{0}, new int[0], new int[]{0});
+			UpdateDoublesSketch sketch = UpdateDoublesSketch.builder().setK(64).build();
+			int referenceSize = 1 + rng.nextInt(1000);
+			for(int i = 0; i < referenceSize; i++) sketch.update(rng.nextInt(spread) - spread / 2);
+			for(int i = 0; i < windowSize; i++){
+				double v = rng.nextInt(spread) - spread / 2 + (t % 3 == 0 ? 0.5 : 0.0);
+				dense.push(new DenseInstance(1.0, new double[]{v}));
+				sparse.push(CSESparseClassWindowTest.sparseInstance(new double[]{v}));
+			}
+			CSEReferenceCDF cdf = new CSEReferenceCDF();
+			cdf.refresh(sketch);
+			int points = 1 + rng.nextInt(40);
+			assertTrue(dense.ksUpperBound(0, cdf, points) >= dense.ksDistance(0, cdf));
+			assertTrue(sparse.ksUpperBound(0, cdf, points) >= sparse.ksDistance(0, cdf));
+			assertEquals(dense.ksUpperBound(0, cdf, points), sparse.ksUpperBound(0, cdf, points), 1e-12);
+		}
+	}
+
+	//Largest gap between the two empirical CDFs, found at every value of either sample
+	protected static double exactDistance(double[] a, double[] b) {
+		double[] points = new double[a.length + b.length];
+		System.arraycopy(a, 0, points, 0, a.length);
+		System.arraycopy(b, 0, points, a.length, b.length);
+		double distance = 0.0;
+		for(double v:points){
+			distance = Math.max(distance, Math.abs(fractionAtOrBelow(a, v) - fractionAtOrBelow(b, v)));
+		}
+		return distance;
+	}
+
+	protected static double fractionAtOrBelow(double[] sample, double v) {
+		int count = 0;
+		for(double x:sample) if(x <= v) count++;
+		return (double)count / sample.length;
+	}
+
+	protected static long[][] trim(long[] observed, long[] expected, int from, int to) {
+		long[] keptObserved = new long[to - from];
+		long[] keptExpected = new long[to - from];
+		int kept = 0;
+		for(int i = from; i < to; i++){
+			if(observed[i] == 0 && expected[i] == 0) continue;
+			if(expected[i] < 5) return null;
+			keptObserved[kept] = observed[i];
+			keptExpected[kept++] = expected[i];
+		}
+		return new long[][]{Arrays.copyOf(keptObserved, kept), Arrays.copyOf(keptExpected, kept)};
+	}
+
+	protected static long sum(long[] counts) {
+		long sum = 0;
+		for(long c:counts) sum += c;
+		return sum;
+	}
+}
@@ -0,0 +1,61 @@
+package moa.classifiers.meta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import com.yahoo.labs.samoa.instances.Instance;
+
+import moa.tasks.NullMonitor;
+
+// Exclusively provided as part of submission  of 'An ensemble for classification in multi-class streams
+// with class-based concept drift' for ECML 2019. Not to be used for any other purpose.
+
+// Shards trained on the drifting stream of CSETest vote as one CSE of the same configuration, over both transports
+public class ShardedCSETest {
+
+	@Test
+	public void inProcessShardsMatchUnsharded() {
+		assertMatchesUnsharded(3, 0);
+	}
+
+	@Test
+	public void loopbackShardsMatchUnsharded() {
+		assertMatchesUnsharded(2, 1);
+	}
+
+	@Test
+	public void defaultConfigurationPrepares() {
+		ShardedCSE sharded = new ShardedCSE();
+		sharded.prepareForUse(new NullMonitor(), null);
+		sharded.setModelContext(CSETest.header());
+		sharded.trainOnInstance(CSETest.instances().get(0));
+		sharded.resetLearning();
+	}
+
+	protected static void assertMatchesUnsharded(int numShards, int transport) {
+		ArrayList<Instance> instances = CSETest.instances();
+		CSE unsharded = CSETest.createCSE(false);
+		ShardedCSE sharded = new ShardedCSE();
+		sharded.cseOption.setValueViaCLIString("moa.classifiers.meta.CSE -n 50");
+		sharded.numShardsOption.setValue(numShards);
+		sharded.transportOption.setChosenIndex(transport);
+		sharded.prepareForUse(new NullMonitor(), null);
+		sharded.setModelContext(CSETest.header());
+		try {
+			for(Instance inst:instances){
+				unsharded.trainOnInstance(inst);
+				sharded.trainOnInstance(inst);
+			}
+			assertTrue(unsharded.getNumClassDrifts() > 0);
+			for(int i = 0; i < instances.size(); i += 37){
+				assertArrayEquals(unsharded.getVotesForInstance(instances.get(i)), sharded.getVotesForInstance(instances.get(i)), 0.0);
+			}
+		} finally {
+			sharded.resetLearning();
+		}
+	}
+}